@@ -27,6 +27,7 @@ import com.android.mms.util.SmileyParser;
 import com.android.mms.util.RateController;
 import com.android.mms.MmsConfig;
 import com.android.mms.transaction.MessagingNotification;
+import com.android.mms.transaction.TransactionMetrics;
 
 import android.app.Application;
 import android.content.Context;
@@ -57,6 +58,7 @@ public class MmsApp extends Application {
         Conversation.init(this);
         DownloadManager.init(this);
         RateController.init(this);
+        TransactionMetrics.init(this);
         DrmUtils.cleanupStorage(this);
         LayoutManager.init(this);
         SmileyParser.init(this);
@@ -57,9 +57,23 @@ public class MmsConfig {
     private static int mMinMessageCountPerThread = 2;           // default value
     private static int mMaxMessageCountPerThread = 5000;        // default value
     private static int mHttpSocketTimeout = 60*1000;            // default to 1 min
+    private static int mTransactionThreadCount = 3;             // default value
     private static int mMinimumSlideElementDuration = 7;        // default to 7 sec
     private static boolean mNotifyWapMMSC = false;
     private static boolean mAllowAttachAudio = true;
+    private static boolean mTransactionMetricsLogEnabled = false;
+    private static boolean mAdaptiveRetryEnabled = true;
+    private static boolean mAsyncTransactionDispatch = true;
+    private static int mRetryBaseDelay = 60 * 1000;             // default to 1 min
+    private static int mRetryMaxDelay = 30 * 60 * 1000;         // default to 30 min
+    private static int mRetryLimit = 5;                         // default value
+    private static int mRetryJitterPercent = 20;                // default value
+    private static int mRetryCoalesceWindow = 30 * 1000;        // default to 30 sec
+    private static int mMaxDownloadBytesInFlight = 600 * 1024;  // default value
+    private static int mDownloadAgingRate = 10 * 1024;          // bytes per sec waited
+    private static int mLargeDownloadSize = 300 * 1024;         // default value
+    private static int mLargeDownloadMinThroughput = 0;         // default to never defer
+    private static int mSmsSendWindow = 4;                      // default value
 
     // This is the max amount of storage multiplied by mMaxMessageSize that we
     // allow of unsent messages before blocking the user from sending any more
@@ -152,10 +166,110 @@ public class MmsConfig {
         return mHttpSocketTimeout;
     }
 
+    /**
+     * Number of worker threads the TransactionService uses to run MMS
+     * transactions concurrently.
+     */
+    public static int getTransactionThreadCount() {
+        return mTransactionThreadCount;
+    }
+
     public static int getMinimumSlideElementDuration() {
         return mMinimumSlideElementDuration;
     }
 
+    /**
+     * Whether transaction latencies are also written to a rolling log file,
+     * see TransactionMetrics.
+     */
+    public static boolean getTransactionMetricsLogEnabled() {
+        return mTransactionMetricsLogEnabled;
+    }
+
+    /**
+     * Whether failed transactions are retried with AdaptiveRetryScheme
+     * rather than the fixed DefaultRetryScheme.
+     */
+    public static boolean getAdaptiveRetryEnabled() {
+        return mAdaptiveRetryEnabled;
+    }
+
+    /**
+     * Whether the observers of a transaction are notified on a dispatch
+     * thread of the TransactionService rather than on the thread that ran
+     * the transaction.
+     */
+    public static boolean getAsyncTransactionDispatch() {
+        return mAsyncTransactionDispatch;
+    }
+
+    /**
+     * Delay before the first retry of a failed transaction, in ms. Doubles
+     * with every further retry.
+     */
+    public static int getRetryBaseDelay() {
+        return mRetryBaseDelay;
+    }
+
+    public static int getRetryMaxDelay() {
+        return mRetryMaxDelay;
+    }
+
+    public static int getRetryLimit() {
+        return mRetryLimit;
+    }
+
+    /**
+     * How much each retry delay is randomly moved, as a percentage of it.
+     */
+    public static int getRetryJitterPercent() {
+        return mRetryJitterPercent;
+    }
+
+    /**
+     * Retries due within this many ms of each other share one alarm.
+     */
+    public static int getRetryCoalesceWindow() {
+        return mRetryCoalesceWindow;
+    }
+
+    /**
+     * At most this many bytes of auto-downloads are retrieved at the same
+     * time. A single download larger than this still runs, alone.
+     */
+    public static int getMaxDownloadBytesInFlight() {
+        return mMaxDownloadBytesInFlight;
+    }
+
+    /**
+     * How many bytes a waiting auto-download is moved ahead of the larger
+     * downloads for every second it waits, so that it isn't starved.
+     */
+    public static int getDownloadAgingRate() {
+        return mDownloadAgingRate;
+    }
+
+    public static int getLargeDownloadSize() {
+        return mLargeDownloadSize;
+    }
+
+    /**
+     * Auto-downloads of at least getLargeDownloadSize() bytes wait for all
+     * other downloads while the measured throughput is below this many
+     * bytes per second. 0 disables this.
+     */
+    public static int getLargeDownloadMinThroughput() {
+        return mLargeDownloadMinThroughput;
+    }
+
+    /**
+     * The number of queued SMS messages that are handed to the radio before
+     * the first of them is reported sent.
+     */
+    public static int getSmsSendWindow() {
+        return mSmsSendWindow;
+    }
+
     public static boolean getNotifyWapMMSC() {
         return mNotifyWapMMSC;
     }
@@ -242,6 +356,12 @@ public class MmsConfig {
                             mAliasEnabled = "true".equalsIgnoreCase(text);
                         } else if ("allowAttachAudio".equalsIgnoreCase(value)) {
                             mAllowAttachAudio = "true".equalsIgnoreCase(text);
+                        } else if ("enabledTransactionMetricsLog".equalsIgnoreCase(value)) {
+                            mTransactionMetricsLogEnabled = "true".equalsIgnoreCase(text);
+                        } else if ("enabledAdaptiveRetry".equalsIgnoreCase(value)) {
+                            mAdaptiveRetryEnabled = "true".equalsIgnoreCase(text);
+                        } else if ("enabledAsyncTransactionDispatch".equalsIgnoreCase(value)) {
+                            mAsyncTransactionDispatch = "true".equalsIgnoreCase(text);
                         }
                     } else if ("int".equals(tag)) {
                         // int config tags go here
@@ -266,6 +386,48 @@ public class MmsConfig {
                             }
                         } else if ("httpSocketTimeout".equalsIgnoreCase(value)) {
                             mHttpSocketTimeout = Integer.parseInt(text);
+                        } else if ("transactionThreadCount".equalsIgnoreCase(value)) {
+                            mTransactionThreadCount = Integer.parseInt(text);
+                        } else if ("retryBaseDelay".equalsIgnoreCase(value)) {
+                            mRetryBaseDelay = Integer.parseInt(text);
+                            if (mRetryBaseDelay < 0) {
+                                mRetryBaseDelay = 0;
+                            }
+                        } else if ("retryMaxDelay".equalsIgnoreCase(value)) {
+                            mRetryMaxDelay = Integer.parseInt(text);
+                            if (mRetryMaxDelay < 0) {
+                                mRetryMaxDelay = 0;
+                            }
+                        } else if ("retryLimit".equalsIgnoreCase(value)) {
+                            mRetryLimit = Integer.parseInt(text);
+                            if (mRetryLimit < 0) {
+                                mRetryLimit = 0;
+                            }
+                        } else if ("retryJitterPercent".equalsIgnoreCase(value)) {
+                            mRetryJitterPercent = Integer.parseInt(text);
+                            if (mRetryJitterPercent < 0) {
+                                mRetryJitterPercent = 0;
+                            } else if (mRetryJitterPercent > 100) {
+                                mRetryJitterPercent = 100;
+                            }
+                        } else if ("retryCoalesceWindow".equalsIgnoreCase(value)) {
+                            mRetryCoalesceWindow = Integer.parseInt(text);
+                            if (mRetryCoalesceWindow < 0) {
+                                mRetryCoalesceWindow = 0;
+                            }
+                        } else if ("maxDownloadBytesInFlight".equalsIgnoreCase(value)) {
+                            mMaxDownloadBytesInFlight = Integer.parseInt(text);
+                        } else if ("downloadAgingRate".equalsIgnoreCase(value)) {
+                            mDownloadAgingRate = Integer.parseInt(text);
+                        } else if ("largeDownloadSize".equalsIgnoreCase(value)) {
+                            mLargeDownloadSize = Integer.parseInt(text);
+                        } else if ("largeDownloadMinThroughput".equalsIgnoreCase(value)) {
+                            mLargeDownloadMinThroughput = Integer.parseInt(text);
+                        } else if ("smsSendWindow".equalsIgnoreCase(value)) {
+                            mSmsSendWindow = Integer.parseInt(text);
+                            if (mSmsSendWindow < 1) {
+                                mSmsSendWindow = 1;
+                            }
                         } else if ("minimumSlideElementDuration".equalsIgnoreCase(value)) {
                             mMinimumSlideElementDuration = Integer.parseInt(text);
                         } else if ("maxSizeScaleForPendingMmsAllowed".equalsIgnoreCase(value)) {
@@ -303,6 +465,11 @@ public class MmsConfig {
             parser.close();
         }
 
+        // The tags can come in any order, so this is checked once all are read.
+        if (mRetryMaxDelay < mRetryBaseDelay) {
+            mRetryMaxDelay = mRetryBaseDelay;
+        }
+
         String errorStr = null;
 
         if (getMmsEnabled() && mUaProfUrl == null) {
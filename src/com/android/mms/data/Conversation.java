@@ -22,6 +22,7 @@ import android.util.Log;
 import com.android.mms.LogTag;
 import com.android.mms.R;
 import com.android.mms.transaction.MessagingNotification;
+import com.android.mms.transaction.SmsMessageSender;
 import com.android.mms.ui.MessageUtils;
 import com.android.mms.util.DraftCache;
 
@@ -558,6 +559,7 @@ public class Conversation {
         Uri uri = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
         String selection = deleteAll ? null : "locked=0";
         handler.startDelete(token, null, uri, selection, null);
+        SmsMessageSender.invalidateServiceCenter(threadId);
     }
 
     /**
@@ -570,6 +572,7 @@ public class Conversation {
     public static void startDeleteAll(AsyncQueryHandler handler, int token, boolean deleteAll) {
         String selection = deleteAll ? null : "locked=0";
         handler.startDelete(token, null, Threads.CONTENT_URI, selection, null);
+        SmsMessageSender.invalidateServiceCenters();
     }
 
     /**
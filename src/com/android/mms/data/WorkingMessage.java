@@ -1026,7 +1026,8 @@ public class WorkingMessage {
             sender.sendMessage(threadId);
 
             // Make sure this thread isn't over the limits in message count
-            Recycler.getSmsRecycler().deleteOldMessagesByThreadId(mContext, threadId);
+            Recycler.getSmsRecycler().deleteOldMessagesByThreadId(mContext, threadId,
+                    dests.length);
         } catch (Exception e) {
             Log.e(TAG, "Failed to send SMS message, threadId=" + threadId, e);
         }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Acknowledgements (M-NotifyResp.ind, M-Acknowledge.ind) waiting to be sent
+ * to the MMSC by an {@link AckTransaction}. Retrievals queue their ack here
+ * and finish without waiting for the round trip.
+ *
+ * Every ack is kept in its own file until it was sent, so acks that could
+ * not be sent before the MMS APN went away are sent during a later lease,
+ * even after the process was restarted. Acks older than a day are dropped;
+ * the MMSC has given up on them by then.
+ */
+public class AckQueue {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final String ACK_DIR = "mms_acks";
+    private static final String ACK_SUFFIX = ".ack";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static AckQueue sInstance;
+
+    private final File mDir;
+    // Oldest first, guarded by "this".
+    private final LinkedList<Ack> mAcks = new LinkedList<Ack>();
+    private int mSequence;
+
+    // Statistics since process start, guarded by "this".
+    private int mQueued;
+    private int mSent;
+    private int mDropped;
+
+    /**
+     * A queued acknowledgement.
+     */
+    public static class Ack {
+        private final File mFile;
+        private final byte[] mPdu;
+        private final String mUrl;
+
+        Ack(File file, byte[] pdu, String url) {
+            mFile = file;
+            mPdu = pdu;
+            mUrl = url;
+        }
+
+        public byte[] getPdu() {
+            return mPdu;
+        }
+
+        /**
+         * Returns the URL the ack is posted to.
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+    }
+
+    private AckQueue(Context context) {
+        mDir = new File(context.getFilesDir(), ACK_DIR);
+        load();
+    }
+
+    public static synchronized AckQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AckQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue an acknowledgement.
+     *
+     * @param pdu The composed PDU.
+     * @param url The URL to post it to.
+     * @throws IOException if the ack could not be stored, in which case it
+     *         isn't queued either.
+     */
+    public synchronized void add(byte[] pdu, String url) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create ack directory " + mDir);
+        }
+
+        String name = System.currentTimeMillis() + "-" + (mSequence++);
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        File file = new File(mDir, name + ACK_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeUTF(url);
+            out.writeInt(pdu.length);
+            out.write(pdu);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot store ack " + file);
+        }
+
+        mAcks.add(new Ack(file, pdu, url));
+        mQueued++;
+    }
+
+    /**
+     * Returns the oldest queued ack, or null if there is none. It stays
+     * queued until {@link #remove} is called.
+     */
+    public synchronized Ack peek() {
+        return mAcks.isEmpty() ? null : mAcks.getFirst();
+    }
+
+    /**
+     * Remove an ack that was sent, or that can't ever be sent.
+     *
+     * @param sent Whether the MMSC got the ack.
+     */
+    public synchronized void remove(Ack ack, boolean sent) {
+        if (mAcks.remove(ack)) {
+            if (sent) {
+                mSent++;
+            } else {
+                mDropped++;
+            }
+        }
+        if (ack.mFile.exists() && !ack.mFile.delete()) {
+            Log.w(TAG, "[AckQueue] Cannot delete " + ack.mFile);
+        }
+    }
+
+    public synchronized boolean hasPending() {
+        return !mAcks.isEmpty();
+    }
+
+    private void load() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Names start with the time the ack was queued.
+        Arrays.sort(files);
+
+        long oldest = System.currentTimeMillis() - MAX_AGE;
+        for (File file : files) {
+            if (!file.getName().endsWith(ACK_SUFFIX) || (file.lastModified() < oldest)) {
+                // Stale, or left behind by a process that died while writing it.
+                file.delete();
+                continue;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    String url = in.readUTF();
+                    byte[] pdu = new byte[in.readInt()];
+                    in.readFully(pdu);
+                    mAcks.add(new Ack(file, pdu, url));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "[AckQueue] Dropping unreadable ack " + file, e);
+                file.delete();
+            } catch (RuntimeException e) {
+                // A corrupt length.
+                Log.w(TAG, "[AckQueue] Dropping corrupt ack " + file, e);
+                file.delete();
+            }
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "[AckQueue] loaded " + mAcks.size() + " acks");
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the queue, suitable for logging.
+     */
+    public synchronized String getStats() {
+        return "pending=" + mAcks.size()
+                + " queued=" + mQueued
+                + " sent=" + mSent
+                + " dropped=" + mDropped;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Sends the acknowledgements waiting in the {@link AckQueue}, one after the
+ * other over the connections of the current lease, until the queue is
+ * empty. Only one runs at a time. Acks left over when the network fails
+ * stay queued for the next one.
+ */
+public class AckTransaction extends Transaction {
+    private static final String TAG = "AckTransaction";
+
+    public AckTransaction(Context context, int serviceId,
+            TransactionSettings connectionSettings) {
+        super(context, serviceId, connectionSettings);
+        // All acks are sent by a single transaction.
+        mId = "ack";
+    }
+
+    @Override
+    public void process() {
+        AckQueue queue = AckQueue.getInstance(mContext);
+        TransactionMetrics metrics = TransactionMetrics.getInstance();
+        int sent = 0;
+        try {
+            AckQueue.Ack ack;
+            while ((ack = queue.peek()) != null) {
+                long start = TransactionMetrics.now();
+                try {
+                    sendPdu(ack.getPdu(), ack.getUrl());
+                } catch (Exception e) {
+                    if (!TransactionFailure.isPermanent(TransactionFailure.classify(e))) {
+                        throw e;
+                    }
+                    // The MMSC won't ever take this one; don't let it hold
+                    // up the others.
+                    Log.w(TAG, "Dropping ack rejected by the MMSC", e);
+                    queue.remove(ack, false);
+                    continue;
+                }
+                metrics.record(TransactionMetrics.PHASE_ACK, getType(), start);
+                queue.remove(ack, true);
+                sent++;
+            }
+            mTransactionState.setState(TransactionState.SUCCESS);
+        } catch (Throwable t) {
+            setFailureCause(t);
+            Log.e(TAG, Log.getStackTraceString(t));
+        } finally {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "Sent " + sent + " acks, " + queue.getStats());
+            }
+            if (mTransactionState.getState() != TransactionState.SUCCESS) {
+                mTransactionState.setState(TransactionState.FAILED);
+                Log.e(TAG, "Sending acks failed.");
+            }
+            notifyObservers();
+        }
+    }
+
+    @Override
+    public int getType() {
+        return ACK_TRANSACTION;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.MmsConfig;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with random jitter: the n-th retry waits
+ * base * 2^(n-1), at most the configured maximum, plus or minus the jitter
+ * percentage. The jitter keeps devices that lost the network at the same
+ * moment from all retrying at the same moment too. Failures that can't go
+ * away by themselves are not retried at all.
+ */
+public class AdaptiveRetryScheme extends AbstractRetryScheme {
+    private static final Random sRandom = new Random();
+
+    private final int mFailure;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mRetryLimit;
+    private final int mJitterPercent;
+    private final Random mRandom;
+
+    /**
+     * @param retriedTimes How many times the transaction has been tried.
+     * @param failure The class of the last failure, see {@link TransactionFailure}.
+     */
+    public AdaptiveRetryScheme(int retriedTimes, int failure) {
+        this(retriedTimes, failure, MmsConfig.getRetryBaseDelay(), MmsConfig.getRetryMaxDelay(),
+                MmsConfig.getRetryLimit(), MmsConfig.getRetryJitterPercent(), sRandom);
+    }
+
+    public AdaptiveRetryScheme(int retriedTimes, int failure, long baseDelay, long maxDelay,
+            int retryLimit, int jitterPercent, Random random) {
+        super(retriedTimes < 1 ? 1 : retriedTimes);
+        mFailure = failure;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRetryLimit = retryLimit;
+        mJitterPercent = jitterPercent;
+        mRandom = random;
+    }
+
+    @Override
+    public int getRetryLimit() {
+        return TransactionFailure.isPermanent(mFailure) ? 0 : mRetryLimit;
+    }
+
+    @Override
+    public long getWaitingInterval() {
+        long delay = mBaseDelay;
+        for (int i = 1; (i < mRetriedTimes) && (delay < mMaxDelay); i++) {
+            delay *= 2;
+        }
+        if (delay > mMaxDelay) {
+            delay = mMaxDelay;
+        }
+
+        long jitter = delay * mJitterPercent / 100;
+        if (jitter > 0) {
+            // Uniform in [delay - jitter, delay + jitter].
+            delay += (long) ((mRandom.nextDouble() * 2 - 1) * jitter);
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides when waiting auto-downloads are started, so that a few large
+ * messages don't hold up the small ones queued behind them.
+ *
+ * The smallest waiting download goes first. Every second a download waits
+ * counts as a number of bytes off its size, so large downloads still get
+ * their turn. Downloads are only started while the bytes in flight stay
+ * under a limit; one download is always allowed, however large. Optionally,
+ * large downloads wait for all others while the measured throughput is low.
+ *
+ * The throughput is a moving average over the completed retrievals of the
+ * process, see {@link #recordDownload}.
+ */
+public class DownloadScheduler {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    // Weight of the newest sample in the throughput estimate.
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+
+    // Smaller downloads are dominated by round trips and say little about
+    // the throughput.
+    private static final long MIN_SAMPLE_SIZE = 8 * 1024;
+
+    // Bytes per second, 0 until measured. Guarded by DownloadScheduler.class.
+    private static long sThroughput;
+
+    private final Executor mExecutor;
+    private final long mMaxBytesInFlight;
+    private final long mAgingRate;
+    private final long mLargeSize;
+    private final long mMinThroughput;
+
+    // Guarded by "this".
+    private final ArrayList<Job> mWaiting = new ArrayList<Job>();
+    private final IdentityHashMap<Runnable, Job> mInFlight = new IdentityHashMap<Runnable, Job>();
+    private long mBytesInFlight;
+    private int mStarted;
+    private int mDeferred;
+
+    private static class Job {
+        final Runnable mRunnable;
+        final long mSize;
+        final long mQueuedAt;
+
+        Job(Runnable runnable, long size, long queuedAt) {
+            mRunnable = runnable;
+            mSize = size;
+            mQueuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * @param executor Runs the downloads once they are started.
+     */
+    public DownloadScheduler(Executor executor) {
+        this(executor, MmsConfig.getMaxDownloadBytesInFlight(), MmsConfig.getDownloadAgingRate(),
+                MmsConfig.getLargeDownloadSize(), MmsConfig.getLargeDownloadMinThroughput());
+    }
+
+    public DownloadScheduler(Executor executor, long maxBytesInFlight, long agingRate,
+            long largeSize, long minThroughput) {
+        mExecutor = executor;
+        mMaxBytesInFlight = maxBytesInFlight;
+        mAgingRate = agingRate;
+        mLargeSize = largeSize;
+        mMinThroughput = minThroughput;
+    }
+
+    /**
+     * Queue a download. {@code runnable} is passed to the executor when it is
+     * its turn, and {@link #onFinished} must be called once it has run.
+     *
+     * @param size The expected size of the download in bytes, 0 if unknown.
+     * @param queuedAt When the download was requested, in
+     *        {@link SystemClock#elapsedRealtime()} time.
+     */
+    public void submit(Runnable runnable, long size, long queuedAt) {
+        synchronized (this) {
+            mWaiting.add(new Job(runnable, Math.max(size, 0), queuedAt));
+        }
+        startNext();
+    }
+
+    public void onFinished(Runnable runnable) {
+        synchronized (this) {
+            Job job = mInFlight.remove(runnable);
+            if (job != null) {
+                mBytesInFlight -= job.mSize;
+            }
+        }
+        startNext();
+    }
+
+    private void startNext() {
+        ArrayList<Runnable> ready = new ArrayList<Runnable>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            boolean slow = isSlow();
+            while (!mWaiting.isEmpty()) {
+                Job best = null;
+                long bestRank = 0;
+                Job bestLarge = null;
+                long bestLargeRank = 0;
+                for (Job job : mWaiting) {
+                    long rank = job.mSize - (now - job.mQueuedAt) * mAgingRate / 1000;
+                    if (slow && (job.mSize >= mLargeSize)) {
+                        if ((bestLarge == null) || (rank < bestLargeRank)) {
+                            bestLarge = job;
+                            bestLargeRank = rank;
+                        }
+                    } else if ((best == null) || (rank < bestRank)) {
+                        best = job;
+                        bestRank = rank;
+                    }
+                }
+
+                Job next;
+                if (best != null) {
+                    if (!mInFlight.isEmpty()
+                            && (mBytesInFlight + best.mSize > mMaxBytesInFlight)) {
+                        break;
+                    }
+                    next = best;
+                } else {
+                    // Only large downloads on a slow link are left; they go
+                    // one at a time, when nothing else is downloading.
+                    if (!mInFlight.isEmpty()) {
+                        mDeferred++;
+                        break;
+                    }
+                    next = bestLarge;
+                }
+
+                mWaiting.remove(next);
+                mInFlight.put(next.mRunnable, next);
+                mBytesInFlight += next.mSize;
+                mStarted++;
+                ready.add(next.mRunnable);
+
+                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                    Log.v(TAG, "[DownloadScheduler] start " + next.mSize + " bytes after "
+                            + (now - next.mQueuedAt) + "ms, inFlight=" + mBytesInFlight
+                            + " waiting=" + mWaiting.size());
+                }
+            }
+        }
+
+        for (Runnable runnable : ready) {
+            mExecutor.execute(runnable);
+        }
+    }
+
+    private boolean isSlow() {
+        if (mMinThroughput <= 0) {
+            return false;
+        }
+        long throughput = getThroughput();
+        return (throughput > 0) && (throughput < mMinThroughput);
+    }
+
+    /**
+     * Add a completed retrieval to the throughput estimate.
+     *
+     * @param bytes The size of the retrieved PDU.
+     * @param elapsed How long the HTTP request took, in ms.
+     */
+    public static synchronized void recordDownload(long bytes, long elapsed) {
+        if ((bytes < MIN_SAMPLE_SIZE) || (elapsed <= 0)) {
+            return;
+        }
+        long sample = bytes * 1000 / elapsed;
+        if (sThroughput == 0) {
+            sThroughput = sample;
+        } else {
+            sThroughput = (long) (THROUGHPUT_WEIGHT * sample
+                    + (1 - THROUGHPUT_WEIGHT) * sThroughput);
+        }
+    }
+
+    /**
+     * Returns the estimated download throughput in bytes per second, or 0
+     * if nothing has been measured yet.
+     */
+    public static synchronized long getThroughput() {
+        return sThroughput;
+    }
+
+    /**
+     * Start all waiting downloads at once, e.g. before the executor is shut
+     * down.
+     */
+    public void startAll() {
+        ArrayList<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<Job>(mWaiting);
+            mWaiting.clear();
+            for (Job job : jobs) {
+                mInFlight.put(job.mRunnable, job);
+                mBytesInFlight += job.mSize;
+            }
+        }
+        for (Job job : jobs) {
+            mExecutor.execute(job.mRunnable);
+        }
+    }
+
+    public synchronized void dump() {
+        Log.d(TAG, "downloads: waiting=" + mWaiting.size()
+                + " inFlight=" + mInFlight.size()
+                + " bytesInFlight=" + mBytesInFlight
+                + " started=" + mStarted
+                + " deferred=" + mDeferred
+                + " throughput=" + getThroughput() + "B/s");
+    }
+}
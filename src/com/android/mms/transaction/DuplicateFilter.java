@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+import com.android.mms.util.BloomFilter;
+import com.google.android.mms.pdu.PduHeaders;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SqliteWrapper;
+import android.provider.Telephony.Mms;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Answers whether a notification's content location or a retrieved
+ * message's Message-ID is already in the pdu table, without querying the
+ * provider for every PDU a carrier pushes at us.
+ *
+ * A Bloom filter holds every key in the table. It is loaded with one query
+ * the first time it is needed and kept up to date by {@link #addLocation}
+ * and {@link #addMessageId}. Keys the filter has never seen can't be in
+ * the table, so only keys that pass the filter are looked up in the
+ * provider, which stays the authority: a row deleted since its key was
+ * added is found missing and the PDU processed again.
+ *
+ * Rows deleted from the table stay in the filter; they only cost a query.
+ */
+public class DuplicateFilter {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    // ~8KB, under 1% false positives for the first 7000 keys.
+    private static final int FILTER_BITS = 64 * 1024;
+    private static final int FILTER_HASHES = 4;
+
+    private static final String LOCATION_PREFIX = "L:";
+    private static final String MESSAGE_ID_PREFIX = "M:";
+
+    private static final DuplicateFilter sInstance = new DuplicateFilter();
+
+    private final BloomFilter mFilter = new BloomFilter(FILTER_BITS, FILTER_HASHES);
+    private boolean mSeeded;
+    private boolean mSeeding;
+
+    // Statistics, guarded by "this".
+    private int mLookups;
+    private int mFilterMisses;      // Rejected by the filter, no query needed
+    private int mQueriedHits;       // Passed the filter and found in the table
+    private int mFalsePositives;    // Passed the filter but not in the table
+
+    private DuplicateFilter() {
+    }
+
+    public static DuplicateFilter getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Whether a notification with this content location was received before.
+     */
+    public boolean isDuplicateLocation(Context context, String location) {
+        return isDuplicate(context, LOCATION_PREFIX + location,
+                Mms.CONTENT_LOCATION + " = ?", new String[] { location });
+    }
+
+    /**
+     * Whether an M-Retrieve.conf with this Message-ID was stored before.
+     */
+    public boolean isDuplicateMessageId(Context context, String messageId) {
+        return isDuplicate(context, MESSAGE_ID_PREFIX + messageId,
+                "(" + Mms.MESSAGE_ID + " = ? AND " + Mms.MESSAGE_TYPE + " = ?)",
+                new String[] { messageId,
+                        String.valueOf(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) });
+    }
+
+    /**
+     * Record that a notification with this content location was stored.
+     */
+    public void addLocation(String location) {
+        add(LOCATION_PREFIX + location);
+    }
+
+    /**
+     * Record that an M-Retrieve.conf with this Message-ID was stored.
+     */
+    public void addMessageId(String messageId) {
+        add(MESSAGE_ID_PREFIX + messageId);
+    }
+
+    private synchronized void add(String key) {
+        mFilter.add(key);
+    }
+
+    private boolean isDuplicate(Context context, String key,
+            String selection, String[] selectionArgs) {
+        ensureSeeded(context);
+        synchronized (this) {
+            mLookups++;
+            if (mSeeded && !mFilter.mightContain(key)) {
+                mFilterMisses++;
+                return false;
+            }
+        }
+
+        boolean found = false;
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                Mms.CONTENT_URI, new String[] { Mms._ID },
+                selection, selectionArgs, null);
+        if (cursor != null) {
+            try {
+                found = cursor.getCount() > 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        synchronized (this) {
+            if (found) {
+                mQueriedHits++;
+            } else {
+                mFalsePositives++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Load the keys of the table into the filter, once. The query runs
+     * without the lock held, so that addLocation and addMessageId aren't
+     * blocked by it; lookups made meanwhile go to the table.
+     */
+    private void ensureSeeded(Context context) {
+        synchronized (this) {
+            if (mSeeded || mSeeding) {
+                return;
+            }
+            mSeeding = true;
+        }
+
+        ArrayList<String> keys = null;
+        try {
+            keys = loadKeys(context);
+        } finally {
+            synchronized (this) {
+                mSeeding = false;
+                if (keys != null) {
+                    for (String key : keys) {
+                        mFilter.add(key);
+                    }
+                    mSeeded = true;
+                }
+            }
+        }
+
+        if ((keys != null) && Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "[DuplicateFilter] seeded with " + keys.size() + " keys");
+        }
+    }
+
+    private ArrayList<String> loadKeys(Context context) {
+        // If the query fails, the filter isn't used and every key is
+        // queried, as it was before the filter existed. Seeding is tried
+        // again on the next lookup.
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                Mms.CONTENT_URI,
+                new String[] { Mms.CONTENT_LOCATION, Mms.MESSAGE_ID, Mms.MESSAGE_TYPE },
+                Mms.CONTENT_LOCATION + " NOT NULL OR " + Mms.MESSAGE_ID + " NOT NULL",
+                null, null);
+        if (cursor == null) {
+            Log.w(TAG, "[DuplicateFilter] Cannot load keys, filter disabled");
+            return null;
+        }
+        ArrayList<String> keys = new ArrayList<String>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                String location = cursor.getString(0);
+                if (location != null) {
+                    keys.add(LOCATION_PREFIX + location);
+                }
+                String messageId = cursor.getString(1);
+                if ((messageId != null)
+                        && (cursor.getInt(2) == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)) {
+                    keys.add(MESSAGE_ID_PREFIX + messageId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return keys;
+    }
+
+    /**
+     * Returns a one-line summary of how lookups were answered, suitable for
+     * logging.
+     */
+    public synchronized String getStats() {
+        int queried = mQueriedHits + mFalsePositives;
+        return "keys=" + mFilter.size()
+                + " lookups=" + mLookups
+                + " filterMisses=" + mFilterMisses
+                + " queriedHits=" + mQueriedHits
+                + " falsePositives=" + mFalsePositives
+                + " falsePositiveRate="
+                + ((queried == 0) ? 0 : (100 * mFalsePositives / queried)) + "%";
+    }
+}
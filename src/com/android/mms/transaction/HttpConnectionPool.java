@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
+import android.content.Context;
+import android.net.http.AndroidHttpClient;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one keep-alive {@link AndroidHttpClient} around for the duration of an
+ * MMS connectivity lease. The client's connection manager pools connections per
+ * route (MMSC or proxy), so back-to-back transactions in the same lease reuse
+ * the socket instead of doing a new TCP handshake every time.
+ *
+ * The TransactionService calls {@link #endLease()} when it gives up the MMS APN;
+ * idle sockets are closed at that point and the client is thrown away as soon as
+ * the last in-flight request has finished.
+ */
+public class HttpConnectionPool {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    // How long an unused socket may stay open while the lease is still held.
+    private static final long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+
+    private static HttpConnectionPool sInstance;
+
+    private AndroidHttpClient mClient;
+    private int mActiveRequests;
+    private boolean mLeaseEnded;
+
+    // Statistics since process start.
+    private int mClientsCreated;
+    private int mRequests;
+    private int mReusedConnections;
+
+    private HttpConnectionPool() {
+    }
+
+    public static synchronized HttpConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpConnectionPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Hand out the shared client, creating it if this is the first request of
+     * the lease. Every call must be paired with {@link #release}.
+     */
+    synchronized AndroidHttpClient acquire(Context context) {
+        if (mClient == null) {
+            mClient = HttpUtils.createHttpClient(context);
+            mClientsCreated++;
+        }
+        mLeaseEnded = false;
+        mActiveRequests++;
+        mRequests++;
+        return mClient;
+    }
+
+    /**
+     * Give back a client obtained from {@link #acquire}.
+     *
+     * @param reused whether the request went over an already open connection.
+     */
+    synchronized void release(AndroidHttpClient client, boolean reused) {
+        mActiveRequests--;
+        if (reused) {
+            mReusedConnections++;
+        }
+
+        if (client != mClient) {
+            // The pool was torn down while this request was running.
+            client.close();
+            return;
+        }
+
+        if (mLeaseEnded && (mActiveRequests == 0)) {
+            closeClient();
+        } else {
+            client.getConnectionManager().closeIdleConnections(
+                    IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called when the MMS connectivity lease is released. Closes all idle
+     * sockets right away; busy ones are closed once their request is done.
+     */
+    public synchronized void endLease() {
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "[HttpConnectionPool] endLease: " + getStats());
+        }
+
+        if (mClient == null) {
+            return;
+        }
+
+        if (mActiveRequests == 0) {
+            closeClient();
+        } else {
+            mClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            mLeaseEnded = true;
+        }
+    }
+
+    private void closeClient() {
+        mClient.close();
+        mClient = null;
+        mLeaseEnded = false;
+    }
+
+    /**
+     * Returns a one-line summary of the pool usage, suitable for logging.
+     */
+    public synchronized String getStats() {
+        int pooled = 0;
+        if (mClient != null) {
+            ClientConnectionManager manager = mClient.getConnectionManager();
+            if (manager instanceof ThreadSafeClientConnManager) {
+                pooled = ((ThreadSafeClientConnManager) manager).getConnectionsInPool();
+            }
+        }
+        return "clients=" + mClientsCreated
+                + " requests=" + mRequests
+                + " reused=" + mReusedConnections
+                + " active=" + mActiveRequests
+                + " pooled=" + pooled;
+    }
+
+    public void dump() {
+        Log.d(TAG, "**** HttpConnectionPool dump ****");
+        Log.d(TAG, getStats());
+    }
+}
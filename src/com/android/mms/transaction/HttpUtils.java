@@ -20,6 +20,7 @@ package com.android.mms.transaction;
 import com.android.mms.R;
 import com.android.mms.ui.MessagingPreferenceActivity;
 
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
@@ -27,10 +28,14 @@ import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.apache.http.conn.params.ConnRouteParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 import com.android.mms.MmsConfig;
 import com.android.mms.LogTag;
@@ -47,6 +52,7 @@ import android.util.Log;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -100,8 +106,87 @@ public class HttpUtils {
      *         an HTTP error code(&gt;=400) returned from the server.
      */
     protected static byte[] httpConnection(Context context, long token,
-            String url, byte[] pdu, int method, boolean isProxySet,
+            String url, ProgressCallbackEntity.Content pdu, int method, boolean isProxySet,
             String proxyHost, int proxyPort) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(MMS_READ_BUFFER);
+        long length = httpConnection(context, token, url, pdu, method,
+                isProxySet, proxyHost, proxyPort, new BodyReceiver() {
+                    public void onPrepareRequest(HttpRequest req) {
+                    }
+
+                    public OutputStream onResponse(HttpResponse response) {
+                        return out;
+                    }
+                });
+        return (length < 0) ? null : out.toByteArray();
+    }
+
+    /**
+     * Thrown when the server answers with an error status, so that the
+     * status can be told apart from a network failure.
+     */
+    public static class HttpStatusException extends IOException {
+        private final int mStatusCode;
+
+        public HttpStatusException(int statusCode, String reasonPhrase) {
+            super("HTTP error: " + reasonPhrase);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * Thrown by the stream a {@link BodyReceiver} returned to stop receiving
+     * the body. The connection is closed rather than reading the rest of the
+     * body to reuse it.
+     */
+    public static class TransferAbortedException extends IOException {
+        public TransferAbortedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Lets a caller of {@link HttpUtils#httpConnection} add to the request
+     * and decide where the response body is written once the response
+     * headers are known, so the body can be streamed instead of buffered.
+     */
+    interface BodyReceiver {
+        /**
+         * Called before the request is sent.
+         */
+        void onPrepareRequest(HttpRequest req);
+
+        /**
+         * Called with a successful (2xx) response before its body is read.
+         *
+         * @return the stream receiving the body. It is not closed by HttpUtils.
+         * @throws IOException to reject the response.
+         */
+        OutputStream onResponse(HttpResponse response) throws IOException;
+    }
+
+    /**
+     * A helper method to send or retrieve data through HTTP protocol, writing
+     * the response body to a stream as it arrives instead of buffering it in
+     * memory.
+     *
+     * @param token The token to identify the sending progress.
+     * @param url The URL used in a GET request. Null when the method is
+     *         HTTP_POST_METHOD.
+     * @param pdu The data to be POST. Null when the method is HTTP_GET_METHOD.
+     * @param method HTTP_POST_METHOD or HTTP_GET_METHOD.
+     * @param receiver Supplies the stream the response data is written to.
+     * @return The number of bytes received, or -1 if the response had no body.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(&gt;=400) returned from the server.
+     */
+    protected static long httpConnection(Context context, long token,
+            String url, ProgressCallbackEntity.Content pdu, int method, boolean isProxySet,
+            String proxyHost, int proxyPort, BodyReceiver receiver) throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL must not be null.");
         }
@@ -121,7 +206,9 @@ public class HttpUtils {
             //Log.v(TAG, "\tpdu\t\t= " + Arrays.toString(pdu));
         }
 
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
         AndroidHttpClient client = null;
+        boolean reused = false;
 
         try {
             // Make sure to use a proxy which supports CONNECT.
@@ -130,7 +217,7 @@ public class HttpUtils {
                     hostUrl.getHost(), hostUrl.getPort(),
                     HttpHost.DEFAULT_SCHEME_NAME);
 
-            client = createHttpClient(context);
+            client = pool.acquire(context);
             HttpRequest req = null;
             switch(method) {
                 case HTTP_POST_METHOD:
@@ -150,16 +237,16 @@ public class HttpUtils {
                     Log.e(TAG, "Unknown HTTP method: " + method
                             + ". Must be one of POST[" + HTTP_POST_METHOD
                             + "] or GET[" + HTTP_GET_METHOD + "].");
-                    return null;
+                    return -1;
             }
 
-            // Set route parameters for the request.
-            HttpParams params = client.getParams();
+            // Set route parameters for the request. The client is shared by
+            // every transaction of the lease, so the proxy goes on the request
+            // parameters rather than on the client's.
             if (isProxySet) {
                 ConnRouteParams.setDefaultProxy(
-                        params, new HttpHost(proxyHost, proxyPort));
+                        req.getParams(), new HttpHost(proxyHost, proxyPort));
             }
-            req.setParams(params);
 
             // Set necessary HTTP headers for MMS transmission.
             req.addHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT);
@@ -207,31 +294,46 @@ public class HttpUtils {
                 }
             }
             req.addHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE);
+            receiver.onPrepareRequest(req);
+
+            HttpContext httpContext = new BasicHttpContext();
+            HttpResponse response = client.execute(target, req, httpContext);
+            reused = isConnectionReused(httpContext);
 
-            HttpResponse response = client.execute(target, req);
+            HttpEntity entity = response.getEntity();
             StatusLine status = response.getStatusLine();
-            if (status.getStatusCode() != 200) { // HTTP 200 is success.
-                throw new IOException("HTTP error: " + status.getReasonPhrase());
+            int statusCode = status.getStatusCode();
+            // HTTP 200 is success. 206 only comes back to Range requests.
+            if ((statusCode != 200) && (statusCode != 206)) {
+                // Drain the error body so the connection can go back to the pool.
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                throw new HttpStatusException(statusCode, status.getReasonPhrase());
             }
 
-            HttpEntity entity = response.getEntity();
-            byte[] body = null;
+            long length = -1;
             if (entity != null) {
                 try {
+                    OutputStream out = receiver.onResponse(response);
                     InputStream in = entity.getContent();
-                    ByteArrayOutputStream out = new ByteArrayOutputStream(MMS_READ_BUFFER);
                     byte[] buffer = new byte[MMS_READ_BUFFER];
 
                     int byteCount;
+                    length = 0;
                     try {
                         while ((byteCount = in.read(buffer)) != -1) {
                             out.write(buffer, 0, byteCount);
+                            length += byteCount;
+                        }
+                    } catch (TransferAbortedException e) {
+                        if (in instanceof ConnectionReleaseTrigger) {
+                            ((ConnectionReleaseTrigger) in).abortConnection();
                         }
-                        body = out.toByteArray();
+                        throw e;
                     } finally {
                         try {
                             in.close();
-                            out.close();
                         } catch (IOException e) {
                             Log.e(TAG, "Error closing input stream: " + e.getMessage());
                         }
@@ -240,7 +342,9 @@ public class HttpUtils {
                     entity.consumeContent();
                 }
             }
-            return body;
+            return length;
+        } catch (TransferAbortedException e) {
+            throw e;
         } catch (URISyntaxException e) {
             handleHttpConnectionException(e, url);
         } catch (IllegalStateException e) {
@@ -254,10 +358,26 @@ public class HttpUtils {
         }
         finally {
             if (client != null) {
-                client.close();
+                pool.release(client, reused);
             }
         }
-        return null;
+        return -1;
+    }
+
+    private static boolean isConnectionReused(HttpContext httpContext) {
+        HttpConnection conn = (HttpConnection) httpContext.getAttribute(
+                ExecutionContext.HTTP_CONNECTION);
+        if (conn == null) {
+            return false;
+        }
+        try {
+            // The request we just sent is already counted.
+            return conn.getMetrics().getRequestCount() > 1;
+        } catch (IllegalStateException e) {
+            // The connection was already handed back to the pool because the
+            // response carried no body.
+            return false;
+        }
     }
 
     private static void handleHttpConnectionException(Exception exception, String url)
@@ -269,7 +389,7 @@ public class HttpUtils {
         throw e;
     }
 
-    private static AndroidHttpClient createHttpClient(Context context) { 
+    static AndroidHttpClient createHttpClient(Context context) {
         // Get Shared Preferences and User Defined User Agent for MMS
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         mUserAgent = prefs.getString(MessagingPreferenceActivity.USER_AGENT, MmsConfig.getUserAgent());
@@ -37,6 +37,7 @@ import com.google.android.mms.pdu.PduComposer;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
+import com.google.android.mms.pdu.RetrieveConf;
 import android.database.sqlite.SqliteWrapper;
 
 import android.content.Context;
@@ -65,8 +66,11 @@ import java.io.IOException;
  * retrieval</b> response.  The transaction service, upon succesful
  * completion of this transaction, will trigger a retrieve transaction
  * in case the client is in immediate retrieve mode.
+ *
+ * An immediate retrieval only downloads the message on the transaction
+ * worker thread; it is stored and answered by the {@link RetrievalPipeline}.
  */
-public class NotificationTransaction extends Transaction implements Runnable {
+public class NotificationTransaction extends Transaction {
     private static final String TAG = "NotificationTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
@@ -123,27 +127,20 @@ public class NotificationTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this).start();
-    }
-
-    public void run() {
         DownloadManager downloadManager = DownloadManager.getInstance();
         boolean autoDownload = downloadManager.isAuto();
         boolean dataSuspended = (MmsApp.getApplication().getTelephonyManager().getDataState() ==
                 TelephonyManager.DATA_SUSPENDED);
+        boolean queued = false;
         try {
             if (LOCAL_LOGV) {
                 Log.v(TAG, "Notification transaction launched: " + this);
             }
 
-            // By default, we set status to STATUS_DEFERRED because we
-            // should response MMSC with STATUS_DEFERRED when we cannot
-            // download a MM immediately.
-            int status = STATUS_DEFERRED;
             // Don't try to download when data is suspended, as it will fail, so defer download
             if (!autoDownload || dataSuspended) {
                 downloadManager.markState(mUri, DownloadManager.STATE_UNSTARTED);
-                sendNotifyRespInd(status);
+                sendNotifyRespInd(STATUS_DEFERRED);
                 return;
             }
 
@@ -159,64 +156,126 @@ public class NotificationTransaction extends Transaction implements Runnable {
             try {
                 retrieveConfData = getPdu(mContentLocation);
             } catch (IOException e) {
+                setFailureCause(e);
                 mTransactionState.setState(FAILED);
             }
 
-            if (retrieveConfData != null) {
-                GenericPdu pdu = new PduParser(retrieveConfData).parse();
-                if ((pdu == null) || (pdu.getMessageType() != MESSAGE_TYPE_RETRIEVE_CONF)) {
-                    Log.e(TAG, "Invalid M-RETRIEVE.CONF PDU.");
-                    mTransactionState.setState(FAILED);
-                    status = STATUS_UNRECOGNIZED;
-                } else {
+            // The rest is done by the pipeline stages, while this worker
+            // goes on with the next download.
+            RetrievalPipeline.getInstance().submit(new Retrieval(retrieveConfData),
+                    (retrieveConfData != null)
+                            ? RetrievalPipeline.STAGE_PARSE : RetrievalPipeline.STAGE_POST);
+            queued = true;
+        } catch (Throwable t) {
+            setFailureCause(t);
+            Log.e(TAG, Log.getStackTraceString(t));
+        } finally {
+            if (!autoDownload || dataSuspended) {
+                // Always mark the transaction successful for deferred
+                // download since any error here doesn't make sense.
+                mTransactionState.setState(SUCCESS);
+            }
+            if (!queued) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        mTransactionState.setContentUri(mUri);
+        if (mTransactionState.getState() != SUCCESS) {
+            mTransactionState.setState(FAILED);
+            Log.e(TAG, "NotificationTransaction failed.");
+        }
+        notifyObservers();
+    }
+
+    /**
+     * Parses and stores an automatically downloaded M-Retrieve.conf and
+     * answers the notification, on the {@link RetrievalPipeline} stages.
+     */
+    private class Retrieval implements RetrievalPipeline.Job {
+        private byte[] mRetrieveConfData;
+        private GenericPdu mPdu;
+
+        // By default, we set status to STATUS_DEFERRED because we
+        // should response MMSC with STATUS_DEFERRED when we cannot
+        // download a MM immediately.
+        private int mStatus = STATUS_DEFERRED;
+
+        Retrieval(byte[] retrieveConfData) {
+            mRetrieveConfData = retrieveConfData;
+        }
+
+        public int runStage(int stage) throws Throwable {
+            TransactionMetrics metrics = TransactionMetrics.getInstance();
+            long start = TransactionMetrics.now();
+            switch (stage) {
+                case RetrievalPipeline.STAGE_PARSE:
+                    mPdu = new PduParser(mRetrieveConfData).parse();
+                    mRetrieveConfData = null;
+                    if ((mPdu == null) || (mPdu.getMessageType() != MESSAGE_TYPE_RETRIEVE_CONF)) {
+                        Log.e(TAG, "Invalid M-RETRIEVE.CONF PDU.");
+                        setFailureCause(new MmsException("Invalid M-RETRIEVE.CONF PDU."));
+                        mTransactionState.setState(FAILED);
+                        mStatus = STATUS_UNRECOGNIZED;
+                        return RetrievalPipeline.STAGE_POST;
+                    }
+                    metrics.record(TransactionMetrics.PHASE_PARSE, getType(), start);
+                    return RetrievalPipeline.STAGE_PERSIST;
+
+                case RetrievalPipeline.STAGE_PERSIST:
                     // Save the received PDU (must be a M-RETRIEVE.CONF).
                     PduPersister p = PduPersister.getPduPersister(mContext);
-                    Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
+                    Uri uri = p.persist(mPdu, Inbox.CONTENT_URI);
+                    metrics.record(TransactionMetrics.PHASE_PERSIST, getType(), start);
+                    byte[] messageId = ((RetrieveConf) mPdu).getMessageId();
+                    if (messageId != null) {
+                        DuplicateFilter.getInstance().addMessageId(new String(messageId));
+                    }
+                    mPdu = null;
                     // We have successfully downloaded the new MM. Delete the
                     // M-NotifyResp.ind from Inbox.
                     SqliteWrapper.delete(mContext, mContext.getContentResolver(),
                                          mUri, null, null);
                     // Notify observers with newly received MM.
                     mUri = uri;
-                    status = STATUS_RETRIEVED;
-                }
-            }
+                    mStatus = STATUS_RETRIEVED;
+                    return RetrievalPipeline.STAGE_POST;
 
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "status=0x" + Integer.toHexString(status));
-            }
+                default:
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "status=0x" + Integer.toHexString(mStatus));
+                    }
 
-            // Check the status and update the result state of this Transaction.
-            switch (status) {
-                case STATUS_RETRIEVED:
-                    mTransactionState.setState(SUCCESS);
-                    break;
-                case STATUS_DEFERRED:
-                    // STATUS_DEFERRED, may be a failed immediate retrieval.
-                    if (mTransactionState.getState() == INITIALIZED) {
-                        mTransactionState.setState(SUCCESS);
+                    // Check the status and update the result state of this Transaction.
+                    switch (mStatus) {
+                        case STATUS_RETRIEVED:
+                            mTransactionState.setState(SUCCESS);
+                            break;
+                        case STATUS_DEFERRED:
+                            // STATUS_DEFERRED, may be a failed immediate retrieval.
+                            if (mTransactionState.getState() == INITIALIZED) {
+                                mTransactionState.setState(SUCCESS);
+                            }
+                            break;
                     }
-                    break;
-            }
 
-            sendNotifyRespInd(status);
+                    sendNotifyRespInd(mStatus);
 
-            // Make sure this thread isn't over the limits in message count.
-            Recycler.getMmsRecycler().deleteOldMessagesInSameThreadAsMessage(mContext, mUri);
-        } catch (Throwable t) {
-            Log.e(TAG, Log.getStackTraceString(t));
-        } finally {
-            mTransactionState.setContentUri(mUri);
-            if (!autoDownload || dataSuspended) {
-                // Always mark the transaction successful for deferred
-                // download since any error here doesn't make sense.
-                mTransactionState.setState(SUCCESS);
+                    // Make sure this thread isn't over the limits in message count.
+                    Recycler.getMmsRecycler().deleteOldMessagesInSameThreadAsMessage(
+                            mContext, mUri);
+                    return RetrievalPipeline.DONE;
             }
-            if (mTransactionState.getState() != SUCCESS) {
-                mTransactionState.setState(FAILED);
-                Log.e(TAG, "NotificationTransaction failed.");
+        }
+
+        public void onFinished(Throwable failure) {
+            if (failure != null) {
+                setFailureCause(failure);
+                Log.e(TAG, Log.getStackTraceString(failure));
             }
-            notifyObservers();
+            finish();
         }
     }
 
@@ -227,14 +286,20 @@ public class NotificationTransaction extends Transaction implements Runnable {
                 mNotificationInd.getTransactionId(),
                 status);
 
-        // Pack M-NotifyResp.ind and send it
+        // Pack M-NotifyResp.ind and queue it, it is sent by an AckTransaction
         if(MmsConfig.getNotifyWapMMSC()) {
-            sendPdu(new PduComposer(mContext, notifyRespInd).make(), mContentLocation);
+            queueAck(new PduComposer(mContext, notifyRespInd).make(), mContentLocation);
         } else {
-            sendPdu(new PduComposer(mContext, notifyRespInd).make());
+            queueAck(new PduComposer(mContext, notifyRespInd).make(), null);
         }
     }
 
+    @Override
+    public long getExpectedSize() {
+        // Nothing is downloaded if the download is deferred.
+        return DownloadManager.getInstance().isAuto() ? mNotificationInd.getMessageSize() : 0;
+    }
+
     @Override
     public int getType() {
         return NOTIFICATION_TRANSACTION;
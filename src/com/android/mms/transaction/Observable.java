@@ -17,19 +17,30 @@
 
 package com.android.mms.transaction;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * An interface to represent the state of an observable Transaction.
+ *
+ * Observers may be attached and detached from any thread, also from within
+ * {@link Observer#update}; a notification goes to the observers attached
+ * when it started. With a dispatch executor set, observers are notified on
+ * it instead of on the thread calling {@link #notifyObservers()}.
  */
 public abstract class Observable {
-    private final ArrayList<Observer> mObservers;
-    private Iterator<Observer> mIterator;
+    private final CopyOnWriteArrayList<Observer> mObservers;
+    private volatile Executor mDispatchExecutor;
+
+    // Notifications of this object waiting for or running on a dispatch
+    // executor.
+    private final AtomicInteger mDispatching = new AtomicInteger();
 
     public Observable() {
-        mObservers = new ArrayList<Observer>();
+        mObservers = new CopyOnWriteArrayList<Observer>();
     }
 
     /**
@@ -55,24 +66,66 @@ public abstract class Observable {
      * @param observer The observer object to be detached from.
      */
     public void detach(Observer observer) {
-        if (mIterator != null) {
-            mIterator.remove();
-        } else {
-            mObservers.remove(observer);
-        }
+        mObservers.remove(observer);
+    }
+
+    /**
+     * Have observers notified on an executor.
+     *
+     * @param executor The executor, or null to notify them on the thread
+     *        calling {@link #notifyObservers()}.
+     */
+    public void setDispatchExecutor(Executor executor) {
+        mDispatchExecutor = executor;
+    }
+
+    /**
+     * Returns the transaction type dispatch latency is recorded for.
+     */
+    protected int getMetricsType() {
+        return TransactionMetrics.TYPE_NONE;
     }
 
     /**
      * Notify all observers that a status change has occurred.
      */
     public void notifyObservers() {
-        mIterator = mObservers.iterator();
-        try {
-            while (mIterator.hasNext()) {
-                mIterator.next().update(this);
+        // The observers attached now, whenever the notification runs.
+        final Observer[] observers = mObservers.toArray(new Observer[0]);
+        Executor executor = mDispatchExecutor;
+        if (executor == null) {
+            dispatch(observers);
+            return;
+        }
+
+        final long queuedAt = TransactionMetrics.now();
+        if (mDispatching.getAndIncrement() > 0) {
+            // Has to wait for an earlier notification of this object.
+            TransactionMetrics.getInstance().increment(
+                    TransactionMetrics.COUNTER_DISPATCH_CONTENDED);
+        }
+        Runnable notification = new Runnable() {
+            public void run() {
+                try {
+                    TransactionMetrics.getInstance().record(
+                            TransactionMetrics.PHASE_DISPATCH, getMetricsType(), queuedAt);
+                    dispatch(observers);
+                } finally {
+                    mDispatching.decrementAndGet();
+                }
             }
-        } finally {
-            mIterator = null;
+        };
+        try {
+            executor.execute(notification);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down.
+            notification.run();
+        }
+    }
+
+    private void dispatch(Observer[] observers) {
+        for (Observer observer : observers) {
+            observer.update(this);
         }
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes a PDU through to another stream while picking the Message-ID and
+ * Transaction-ID out of its headers as they arrive, so that a download can
+ * be judged before its body is received.
+ *
+ * The headers are skipped with the generic WSP value encodings (short
+ * integer, length-prefixed value, null-terminated text). Scanning stops at
+ * Content-Type, which is always the last header, once both IDs were seen,
+ * or after MAX_HEADER_BYTES.
+ */
+public class PduHeaderScanner extends FilterOutputStream {
+    // Headers of real messages are far smaller.
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    private static final int QUOTE = 0x7F;
+    private static final int LENGTH_QUOTE = 0x1F;
+
+    private static final int STATE_FIELD        = 0;    // Expecting a header field
+    private static final int STATE_VALUE        = 1;    // Expecting a field value
+    private static final int STATE_SKIP         = 2;    // Skipping a value of known length
+    private static final int STATE_UINTVAR      = 3;    // Reading the length of a value
+    private static final int STATE_TEXT         = 4;    // Reading a text value
+    private static final int STATE_APP_NAME     = 5;    // Reading an application header name
+    private static final int STATE_APP_VALUE    = 6;    // Reading an application header value
+    private static final int STATE_DONE         = 7;
+
+    /**
+     * Told what the scan found, once, when it stops.
+     */
+    public interface Listener {
+        /**
+         * @param messageId The Message-ID, or null if the PDU has none.
+         * @param transactionId The Transaction-ID, or null if the PDU has none.
+         * @throws IOException to stop the transfer, typically a
+         *         {@link HttpUtils.TransferAbortedException}.
+         */
+        void onHeaders(String messageId, byte[] transactionId) throws IOException;
+    }
+
+    private final Listener mListener;
+
+    private int mState = STATE_FIELD;
+    private int mField;
+    private int mRemaining;
+    private int mScanned;
+    private ByteArrayOutputStream mText;
+
+    private String mMessageId;
+    private byte[] mTransactionId;
+
+    public PduHeaderScanner(OutputStream out, Listener listener) {
+        super(out);
+        mListener = listener;
+    }
+
+    /**
+     * Returns a receiver that scans the body {@code receiver} receives. Only
+     * complete bodies are scanned; the headers of a resumed download were
+     * received by an earlier attempt.
+     */
+    static HttpUtils.BodyReceiver wrap(final HttpUtils.BodyReceiver receiver,
+            final Listener listener) {
+        return new HttpUtils.BodyReceiver() {
+            public void onPrepareRequest(HttpRequest req) {
+                receiver.onPrepareRequest(req);
+            }
+
+            public OutputStream onResponse(HttpResponse response) throws IOException {
+                OutputStream out = receiver.onResponse(response);
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    return out;
+                }
+                return new PduHeaderScanner(out, listener);
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (mState != STATE_DONE) {
+            scan(b & 0xFF);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        out.write(buffer, offset, count);
+        for (int i = offset; (i < offset + count) && (mState != STATE_DONE); i++) {
+            scan(buffer[i] & 0xFF);
+        }
+    }
+
+    @Override
+    public void close() {
+        // The wrapped stream belongs to the caller.
+    }
+
+    public String getMessageId() {
+        return mMessageId;
+    }
+
+    public byte[] getTransactionId() {
+        return mTransactionId;
+    }
+
+    public boolean isDone() {
+        return mState == STATE_DONE;
+    }
+
+    private void scan(int b) throws IOException {
+        switch (mState) {
+            case STATE_FIELD:
+                if (b == PduHeaders.CONTENT_TYPE) {
+                    finish();
+                    return;
+                }
+                if ((b & 0x80) != 0) {
+                    mField = b;
+                    mState = STATE_VALUE;
+                } else {
+                    // An application header, name and value are both text.
+                    mField = -1;
+                    mState = (b == 0) ? STATE_APP_VALUE : STATE_APP_NAME;
+                }
+                break;
+
+            case STATE_VALUE:
+                if (b >= 0x80) {
+                    // Short-integer.
+                    mState = STATE_FIELD;
+                } else if (b < LENGTH_QUOTE) {
+                    // Short-length followed by the value.
+                    mRemaining = b;
+                    mState = (b == 0) ? STATE_FIELD : STATE_SKIP;
+                } else if (b == LENGTH_QUOTE) {
+                    mRemaining = 0;
+                    mState = STATE_UINTVAR;
+                } else {
+                    boolean wanted = (mField == PduHeaders.MESSAGE_ID)
+                            || (mField == PduHeaders.TRANSACTION_ID);
+                    mText = wanted ? new ByteArrayOutputStream() : null;
+                    mState = STATE_TEXT;
+                    if (b != QUOTE) {
+                        appendText(b);
+                    }
+                }
+                break;
+
+            case STATE_SKIP:
+                if (--mRemaining == 0) {
+                    mState = STATE_FIELD;
+                }
+                break;
+
+            case STATE_UINTVAR:
+                mRemaining = (mRemaining << 7) | (b & 0x7F);
+                if (mRemaining > MAX_HEADER_BYTES) {
+                    // Not a header we can skip; give up.
+                    finish();
+                    return;
+                }
+                if ((b & 0x80) == 0) {
+                    mState = (mRemaining == 0) ? STATE_FIELD : STATE_SKIP;
+                }
+                break;
+
+            case STATE_TEXT:
+                if (b == 0) {
+                    endText();
+                    if (mState == STATE_DONE) {
+                        return;
+                    }
+                    mState = STATE_FIELD;
+                } else {
+                    appendText(b);
+                }
+                break;
+
+            case STATE_APP_NAME:
+                if (b == 0) {
+                    mState = STATE_APP_VALUE;
+                }
+                break;
+
+            case STATE_APP_VALUE:
+                if (b == 0) {
+                    mState = STATE_FIELD;
+                }
+                break;
+        }
+
+        if (++mScanned >= MAX_HEADER_BYTES) {
+            finish();
+        }
+    }
+
+    private void appendText(int b) {
+        if (mText != null) {
+            mText.write(b);
+        }
+    }
+
+    private void endText() throws IOException {
+        if (mText == null) {
+            return;
+        }
+        if (mField == PduHeaders.MESSAGE_ID) {
+            mMessageId = new String(mText.toByteArray());
+        } else {
+            mTransactionId = mText.toByteArray();
+        }
+        mText = null;
+
+        if ((mMessageId != null) && (mTransactionId != null)) {
+            finish();
+        }
+    }
+
+    private void finish() throws IOException {
+        mState = STATE_DONE;
+        mListener.onHeaders(mMessageId, mTransactionId);
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Properties;
+
+/**
+ * A private file in the application's cache directory that a downloaded PDU
+ * is written to while it comes off the network. Spooling keeps the heap cost
+ * of a retrieval to a single, exactly sized array instead of the several
+ * growing copies a ByteArrayOutputStream would make.
+ *
+ * A spool opened for a content location survives a failed attempt, so that
+ * the retry can ask the MMSC for the rest of the body with a Range request
+ * instead of starting over.
+ */
+public class PduSpool {
+    private static final String TAG = "PduSpool";
+
+    private static final String SPOOL_DIR = "mms_spool";
+    private static final String TEMP_PREFIX = "pdu";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+
+    // Partial downloads nobody came back for are removed after a week.
+    private static final long MAX_PART_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String META_ETAG = "etag";
+    private static final String META_ATTEMPTS = "attempts";
+    private static final String META_BYTES_SAVED = "bytesSaved";
+
+    // Content locations whose spool is in use by some transaction.
+    private static final HashSet<String> sOpenLocations = new HashSet<String>();
+
+    // Statistics since process start.
+    private static int sResumedDownloads;
+    private static int sIgnoredRanges;
+    private static long sTotalBytesSaved;
+
+    private final File mFile;
+    private final File mMetaFile;
+    private final String mContentLocation;
+    private final Properties mMeta = new Properties();
+    private OutputStream mOut;
+
+    private PduSpool(File file, File metaFile, String contentLocation) {
+        mFile = file;
+        mMetaFile = metaFile;
+        mContentLocation = contentLocation;
+    }
+
+    /**
+     * Create a new, empty spool file that is deleted along with this spool.
+     */
+    public static PduSpool create(Context context) throws IOException {
+        File file = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, getSpoolDir(context));
+        return new PduSpool(file, null, null);
+    }
+
+    /**
+     * Open the resumable spool of a content location, which holds whatever an
+     * earlier attempt managed to download. If the spool is already in use by
+     * another transaction, a temporary one is returned instead.
+     * The spool must be given back with {@link #close()}.
+     */
+    public static PduSpool open(Context context, String contentLocation) throws IOException {
+        synchronized (sOpenLocations) {
+            if (!sOpenLocations.add(contentLocation)) {
+                return create(context);
+            }
+        }
+
+        String name = digest(contentLocation);
+        File dir = getSpoolDir(context);
+        PduSpool spool = new PduSpool(new File(dir, name + PART_SUFFIX),
+                new File(dir, name + META_SUFFIX), contentLocation);
+        spool.loadMeta();
+        return spool;
+    }
+
+    private static File getSpoolDir(Context context) throws IOException {
+        File dir = new File(context.getCacheDir(), SPOOL_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + dir);
+        }
+        return dir;
+    }
+
+    private static String digest(String contentLocation) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(contentLocation.getBytes());
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every VM has SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Remove temporary spool files left behind by a process that died
+     * mid-download, and partial downloads that were never resumed.
+     * Must only be called while no download is in progress.
+     */
+    public static void purge(Context context) {
+        File[] files = new File(context.getCacheDir(), SPOOL_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - MAX_PART_AGE;
+        for (File file : files) {
+            boolean stale = file.getName().endsWith(TEMP_SUFFIX)
+                    || (file.lastModified() < oldest);
+            if (stale && !file.delete()) {
+                Log.w(TAG, "Cannot delete stale spool file " + file);
+            }
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Open the spool for writing, discarding anything it held.
+     */
+    public OutputStream openOutputStream() throws IOException {
+        return new FileOutputStream(mFile);
+    }
+
+    /**
+     * Read the whole spool into one array sized to fit.
+     */
+    public byte[] readFully() throws IOException {
+        closeOutputStream();
+
+        long length = mFile.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Spooled PDU too large: " + length);
+        }
+
+        byte[] data = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of download attempts made into this spool so far.
+     */
+    public int getAttempts() {
+        return getMetaInt(META_ATTEMPTS);
+    }
+
+    /**
+     * Returns how many bytes were not downloaded again thanks to resuming.
+     */
+    public long getBytesSaved() {
+        String value = mMeta.getProperty(META_BYTES_SAVED);
+        return (value == null) ? 0 : Long.parseLong(value);
+    }
+
+    private int getMetaInt(String key) {
+        String value = mMeta.getProperty(key);
+        return (value == null) ? 0 : Integer.parseInt(value);
+    }
+
+    private void loadMeta() {
+        if (!mMetaFile.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(mMetaFile);
+            try {
+                mMeta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read spool metadata, starting over", e);
+            mMeta.clear();
+            mFile.delete();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Corrupt spool metadata, starting over", e);
+            mMeta.clear();
+            mFile.delete();
+        }
+    }
+
+    private void saveMeta() {
+        try {
+            OutputStream out = new FileOutputStream(mMetaFile);
+            try {
+                mMeta.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write spool metadata", e);
+        }
+    }
+
+    /**
+     * Returns a receiver for {@link HttpUtils#httpConnection} that continues
+     * the download from the end of the spool. If the spool is empty, or the
+     * server answers a Range request with the whole body, the spool is
+     * rewritten from the start.
+     */
+    HttpUtils.BodyReceiver newBodyReceiver() {
+        return new ResumingReceiver();
+    }
+
+    private class ResumingReceiver implements HttpUtils.BodyReceiver {
+        private long mOffset;
+
+        public void onPrepareRequest(HttpRequest req) {
+            mOffset = (mMetaFile != null) ? mFile.length() : 0;
+            if (mMetaFile != null) {
+                mMeta.setProperty(META_ATTEMPTS, String.valueOf(getAttempts() + 1));
+            }
+
+            if (mOffset > 0) {
+                req.addHeader("Range", "bytes=" + mOffset + "-");
+                String etag = mMeta.getProperty(META_ETAG);
+                if (etag != null) {
+                    // Only get a partial body if it is still the same entity.
+                    req.addHeader("If-Range", etag);
+                }
+            }
+        }
+
+        public OutputStream onResponse(HttpResponse response) throws IOException {
+            boolean partial = false;
+            if ((mOffset > 0) && (response.getStatusLine().getStatusCode() == 206)) {
+                long start = getContentRangeStart(response);
+                if (start != mOffset) {
+                    // Not what we asked for; start over on the next attempt.
+                    mFile.delete();
+                    throw new IOException("Unexpected Content-Range start " + start
+                            + ", expected " + mOffset);
+                }
+                partial = true;
+            }
+
+            if (mMetaFile != null) {
+                Header etag = response.getFirstHeader("ETag");
+                if (etag != null) {
+                    mMeta.setProperty(META_ETAG, etag.getValue());
+                } else {
+                    mMeta.remove(META_ETAG);
+                }
+            }
+
+            if (partial) {
+                synchronized (PduSpool.class) {
+                    sResumedDownloads++;
+                    sTotalBytesSaved += mOffset;
+                }
+                mMeta.setProperty(META_BYTES_SAVED, String.valueOf(getBytesSaved() + mOffset));
+                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                    Log.v(TAG, "Resuming download of " + mContentLocation + " at " + mOffset);
+                }
+            } else if (mOffset > 0) {
+                // The MMSC ignored the Range header and sent everything.
+                synchronized (PduSpool.class) {
+                    sIgnoredRanges++;
+                }
+            }
+            closeOutputStream();
+            mOut = new FileOutputStream(mFile, partial);
+            return mOut;
+        }
+    }
+
+    private static long getContentRangeStart(HttpResponse response) {
+        // Content-Range: bytes <start>-<end>/<total>
+        Header header = response.getFirstHeader("Content-Range");
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        int begin = value.indexOf(' ') + 1;
+        int end = value.indexOf('-', begin);
+        if ((begin <= 0) || (end < 0)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(begin, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Give the spool back, keeping its content for a later attempt.
+     */
+    public void close() {
+        closeOutputStream();
+        if (mMetaFile == null) {
+            delete();
+            return;
+        }
+        saveMeta();
+        release();
+    }
+
+    /**
+     * Give the spool back and throw away its content.
+     */
+    public void delete() {
+        closeOutputStream();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Cannot delete spool file " + mFile);
+        }
+        if (mMetaFile != null) {
+            mMetaFile.delete();
+            release();
+        }
+    }
+
+    private void closeOutputStream() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing spool file: " + e.getMessage());
+            }
+            mOut = null;
+        }
+    }
+
+    private void release() {
+        synchronized (sOpenLocations) {
+            sOpenLocations.remove(mContentLocation);
+        }
+    }
+
+    /**
+     * Returns a one-line summary of resumed downloads, suitable for logging.
+     */
+    public static synchronized String getStats() {
+        return "resumed=" + sResumedDownloads
+                + " rangeIgnored=" + sIgnoredRanges
+                + " bytesSaved=" + sTotalBytesSaved;
+    }
+}
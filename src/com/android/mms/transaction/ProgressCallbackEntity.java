@@ -17,15 +17,19 @@
 
 package com.android.mms.transaction;
 
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
-public class ProgressCallbackEntity extends ByteArrayEntity {
+public class ProgressCallbackEntity extends AbstractHttpEntity {
     private static final int DEFAULT_PIECE_SIZE = 4096;
 
     public static final String PROGRESS_STATUS_ACTION = "com.android.mms.PROGRESS_STATUS";
@@ -33,18 +37,75 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
     public static final int PROGRESS_ABORT    = -2;
     public static final int PROGRESS_COMPLETE = 100;
 
+    /**
+     * The body of a request, written out each time the request is sent, so
+     * it does not have to be held in memory as a single array.
+     */
+    public interface Content {
+        /**
+         * Returns the exact number of bytes {@link #writeTo} writes.
+         */
+        long getLength();
+
+        void writeTo(OutputStream outstream) throws IOException;
+    }
+
+    /**
+     * Content that is already composed into an array.
+     */
+    public static class ByteArrayContent implements Content {
+        private final byte[] mData;
+
+        public ByteArrayContent(byte[] data) {
+            if (data == null) {
+                throw new IllegalArgumentException("Data may not be null");
+            }
+            mData = data;
+        }
+
+        public long getLength() {
+            return mData.length;
+        }
+
+        public void writeTo(OutputStream outstream) throws IOException {
+            outstream.write(mData);
+        }
+    }
+
     private final Context mContext;
-    private final byte[] mContent;
+    private final Content mContent;
     private final long mToken;
 
     public ProgressCallbackEntity(Context context, long token, byte[] b) {
-        super(b);
+        this(context, token, new ByteArrayContent(b));
+    }
 
+    public ProgressCallbackEntity(Context context, long token, Content content) {
         mContext = context;
-        mContent = b;
+        mContent = content;
         mToken = token;
     }
 
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return mContent.getLength();
+    }
+
+    public InputStream getContent() throws IOException {
+        // Only used by code that inspects the entity; the request itself is
+        // always sent through writeTo().
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) getContentLength());
+        mContent.writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
         if (outstream == null) {
@@ -55,18 +116,11 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
         try {
             broadcastProgressIfNeeded(PROGRESS_START);
 
-            int pos = 0, totalLen = mContent.length;
-            while (pos < totalLen) {
-                int len = totalLen - pos;
-                if (len > DEFAULT_PIECE_SIZE) {
-                    len = DEFAULT_PIECE_SIZE;
-                }
-                outstream.write(mContent, pos, len);
-                outstream.flush();
-
-                pos += len;
-
-                broadcastProgressIfNeeded(100 * pos / totalLen);
+            ProgressOutputStream out = new ProgressOutputStream(outstream);
+            mContent.writeTo(out);
+            if (out.mWritten != out.mTotal) {
+                throw new IOException("Content length changed while sending: wrote "
+                        + out.mWritten + " of " + out.mTotal + " bytes");
             }
 
             broadcastProgressIfNeeded(PROGRESS_COMPLETE);
@@ -86,4 +140,40 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
             mContext.sendBroadcast(intent);
         }
     }
+
+    /**
+     * Passes the content on in pieces of at most DEFAULT_PIECE_SIZE bytes,
+     * broadcasting the progress after each one.
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+        final long mTotal;
+        long mWritten;
+
+        ProgressOutputStream(OutputStream out) {
+            super(out);
+            mTotal = mContent.getLength();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int piece = Math.min(len, DEFAULT_PIECE_SIZE);
+                out.write(b, off, piece);
+                out.flush();
+
+                off += piece;
+                len -= piece;
+                mWritten += piece;
+
+                if (mTotal > 0) {
+                    broadcastProgressIfNeeded((int) (100 * Math.min(mWritten, mTotal) / mTotal));
+                }
+            }
+        }
+    }
 }
@@ -35,20 +35,31 @@ import com.google.android.mms.pdu.ReadOrigInd;
 import android.database.sqlite.SqliteWrapper;
 
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteException;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Mms.Inbox;
 import android.util.Config;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Receives Intent.WAP_PUSH_RECEIVED_ACTION intents and starts the
  * TransactionService by passing the push-data to it.
@@ -64,95 +75,206 @@ public class PushReceiver extends BroadcastReceiver {
     // These must be consistent with ADDRESS_PROJECTION
     private static final int COLUMN_ADDRESS      = 0;
 
-    private class ReceivePushTask extends AsyncTask<Intent,Void,Void> {
-        private Context mContext;
-        public ReceivePushTask(Context context) {
+    // Pushes received within this window are handled together.
+    private static final long INGEST_WINDOW = 300;
+
+    // Time the services we start have to take their own wake locks.
+    private static final long WAKE_LOCK_GRACE = 5000;
+
+    private static final int PARSE_THREADS = 2;
+
+    private static IngestQueue sIngestQueue;
+
+    /**
+     * Collects the pushes received within a short window and handles them
+     * together: they are parsed in parallel, stored from one thread, and all
+     * new notifications are handed to the TransactionService with a single
+     * startService(). A burst of notifications, e.g. after leaving a tunnel,
+     * costs one wake lock and one service start instead of one per push.
+     */
+    private static class IngestQueue implements Runnable {
+        private final Context mContext;
+        private final Handler mHandler;
+        private final PowerManager.WakeLock mWakeLock;
+        private final ExecutorService mParser = Executors.newFixedThreadPool(PARSE_THREADS);
+
+        // Push data waiting for the window to close, guarded by "this".
+        private final ArrayList<byte[]> mPending = new ArrayList<byte[]>();
+
+        private final Runnable mReleaseWakeLock = new Runnable() {
+            public void run() {
+                mWakeLock.release();
+            }
+        };
+
+        IngestQueue(Context context) {
             mContext = context;
+
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MMS PushReceiver");
         }
 
-        @Override
-        protected Void doInBackground(Intent... intents) {
-            Intent intent = intents[0];
+        void add(byte[] pushData) {
+            synchronized (this) {
+                mPending.add(pushData);
+                if (mPending.size() > 1) {
+                    // The window is already open.
+                    return;
+                }
+            }
+            // Held until the batch is handled, plus the grace period.
+            mWakeLock.acquire();
+            mHandler.postDelayed(this, INGEST_WINDOW);
+        }
 
-            // Get raw PDU push-data from the message and parse it
-            byte[] pushData = intent.getByteArrayExtra("data");
-            PduParser parser = new PduParser(pushData);
-            GenericPdu pdu = parser.parse();
+        public void run() {
+            ArrayList<byte[]> batch;
+            synchronized (this) {
+                batch = new ArrayList<byte[]>(mPending);
+                mPending.clear();
+            }
 
-            if (null == pdu) {
-                Log.e(TAG, "Invalid PUSH data");
-                return null;
+            try {
+                ingest(batch);
+            } finally {
+                mHandler.postDelayed(mReleaseWakeLock, WAKE_LOCK_GRACE);
+            }
+
+            if (LOCAL_LOGV) {
+                Log.v(TAG, batch.size() + " PUSH Intents processed.");
             }
+        }
 
+        private void ingest(ArrayList<byte[]> batch) {
             PduPersister p = PduPersister.getPduPersister(mContext);
-            ContentResolver cr = mContext.getContentResolver();
-            int type = pdu.getMessageType();
-            long threadId = -1;
+            ArrayList<String> notificationUris = new ArrayList<String>();
+            ArrayList<ContentProviderOperation> threadOps =
+                    new ArrayList<ContentProviderOperation>();
+            ArrayList<GenericPdu> reports = new ArrayList<GenericPdu>();
+            ArrayList<Uri> reportUris = new ArrayList<Uri>();
 
-            try {
-                switch (type) {
-                    case MESSAGE_TYPE_DELIVERY_IND:
-                    case MESSAGE_TYPE_READ_ORIG_IND: {
-                        threadId = findThreadId(mContext, pdu, type);
-                        if (threadId == -1) {
-                            // The associated SendReq isn't found, therefore skip
-                            // processing this PDU.
+            for (GenericPdu pdu : parse(batch)) {
+                int type = pdu.getMessageType();
+                try {
+                    switch (type) {
+                        case MESSAGE_TYPE_DELIVERY_IND:
+                        case MESSAGE_TYPE_READ_ORIG_IND: {
+                            long threadId = findThreadId(mContext, pdu, type);
+                            if (threadId == -1) {
+                                // The associated SendReq isn't found, therefore skip
+                                // processing this PDU.
+                                break;
+                            }
+
+                            Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
+                            // Update thread ID for ReadOrigInd & DeliveryInd.
+                            threadOps.add(ContentProviderOperation.newUpdate(uri)
+                                    .withValue(Mms.THREAD_ID, threadId)
+                                    .build());
+                            reports.add(pdu);
+                            reportUris.add(uri);
                             break;
                         }
+                        case MESSAGE_TYPE_NOTIFICATION_IND: {
+                            NotificationInd nInd = (NotificationInd) pdu;
+                            appendTransactionId(nInd);
 
-                        Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
-                        // Update thread ID for ReadOrigInd & DeliveryInd.
-                        ContentValues values = new ContentValues(1);
-                        values.put(Mms.THREAD_ID, threadId);
-                        SqliteWrapper.update(mContext, cr, uri, values, null, null);
-                        notifyIfNeeded(mContext, pdu, type, uri);
-                        break;
-                    }
-                    case MESSAGE_TYPE_NOTIFICATION_IND: {
-                        NotificationInd nInd = (NotificationInd) pdu;
-
-                        if (MmsConfig.getTransIdEnabled()) {
-                            byte [] contentLocation = nInd.getContentLocation();
-                            if ('=' == contentLocation[contentLocation.length - 1]) {
-                                byte [] transactionId = nInd.getTransactionId();
-                                byte [] contentLocationWithId = new byte [contentLocation.length
-                                                                          + transactionId.length];
-                                System.arraycopy(contentLocation, 0, contentLocationWithId,
-                                        0, contentLocation.length);
-                                System.arraycopy(transactionId, 0, contentLocationWithId,
-                                        contentLocation.length, transactionId.length);
-                                nInd.setContentLocation(contentLocationWithId);
+                            // Also drops repeats of a notification within the batch,
+                            // since stored locations are added to the filter.
+                            if (!isDuplicateNotification(mContext, nInd)) {
+                                Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
+                                DuplicateFilter.getInstance().addLocation(
+                                        new String(nInd.getContentLocation()));
+                                notificationUris.add(uri.toString());
+                            } else if (LOCAL_LOGV) {
+                                Log.v(TAG, "Skip downloading duplicate message: "
+                                        + new String(nInd.getContentLocation()));
                             }
+                            break;
                         }
-
-                        if (!isDuplicateNotification(mContext, nInd)) {
-                            Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
-                            // Start service to finish the notification transaction.
-                            Intent svc = new Intent(mContext, TransactionService.class);
-                            svc.putExtra(TransactionBundle.URI, uri.toString());
-                            svc.putExtra(TransactionBundle.TRANSACTION_TYPE,
-                                    Transaction.NOTIFICATION_TRANSACTION);
-                            mContext.startService(svc);
-                        } else if (LOCAL_LOGV) {
-                            Log.v(TAG, "Skip downloading duplicate message: "
-                                    + new String(nInd.getContentLocation()));
-                        }
-                        break;
+                        default:
+                            Log.e(TAG, "Received unrecognized PDU.");
                     }
-                    default:
-                        Log.e(TAG, "Received unrecognized PDU.");
+                } catch (MmsException e) {
+                    Log.e(TAG, "Failed to save the data from PUSH: type=" + type, e);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unexpected RuntimeException.", e);
                 }
-            } catch (MmsException e) {
-                Log.e(TAG, "Failed to save the data from PUSH: type=" + type, e);
-            } catch (RuntimeException e) {
-                Log.e(TAG, "Unexpected RuntimeException.", e);
             }
 
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "PUSH Intent processed.");
+            if (!threadOps.isEmpty()) {
+                try {
+                    mContext.getContentResolver().applyBatch(
+                            Mms.CONTENT_URI.getAuthority(), threadOps);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Failed to update thread IDs of reports", e);
+                } catch (OperationApplicationException e) {
+                    Log.e(TAG, "Failed to update thread IDs of reports", e);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to update thread IDs of reports", e);
+                }
+            }
+            for (int i = 0; i < reports.size(); i++) {
+                GenericPdu pdu = reports.get(i);
+                notifyIfNeeded(mContext, pdu, pdu.getMessageType(), reportUris.get(i));
             }
 
-            return null;
+            if (!notificationUris.isEmpty()) {
+                // Start service to finish the notification transactions.
+                TransactionBundle args = new TransactionBundle(
+                        Transaction.NOTIFICATION_TRANSACTION,
+                        notificationUris.toArray(new String[notificationUris.size()]));
+                Intent svc = new Intent(mContext, TransactionService.class);
+                svc.putExtras(args.getBundle());
+                mContext.startService(svc);
+            }
+        }
+
+        /**
+         * Parse the push data of a batch, in parallel if there is more than
+         * one. PDUs that can't be parsed are left out.
+         */
+        private ArrayList<GenericPdu> parse(ArrayList<byte[]> batch) {
+            ArrayList<GenericPdu> pdus = new ArrayList<GenericPdu>(batch.size());
+            if (batch.size() == 1) {
+                try {
+                    addParsed(pdus, new PduParser(batch.get(0)).parse());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unexpected exception parsing PUSH data", e);
+                }
+                return pdus;
+            }
+
+            ArrayList<Future<GenericPdu>> results = new ArrayList<Future<GenericPdu>>();
+            for (final byte[] pushData : batch) {
+                results.add(mParser.submit(new Callable<GenericPdu>() {
+                    public GenericPdu call() {
+                        return new PduParser(pushData).parse();
+                    }
+                }));
+            }
+            for (Future<GenericPdu> result : results) {
+                try {
+                    addParsed(pdus, result.get());
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Unexpected exception parsing PUSH data", e.getCause());
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted parsing PUSH data", e);
+                }
+            }
+            return pdus;
+        }
+
+        private static void addParsed(ArrayList<GenericPdu> pdus, GenericPdu pdu) {
+            if (null == pdu) {
+                Log.e(TAG, "Invalid PUSH data");
+            } else {
+                pdus.add(pdu);
+            }
         }
     }
 
@@ -164,13 +286,32 @@ public class PushReceiver extends BroadcastReceiver {
                 Log.v(TAG, "Received PUSH Intent: " + intent);
             }
 
-            // Hold a wake lock for 5 seconds, enough to give any
-            // services we start time to take their own wake locks.
-            PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
-            PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                                            "MMS PushReceiver");
-            wl.acquire(5000);
-            new ReceivePushTask(context).execute(intent);
+            // Get raw PDU push-data from the message; it is parsed with the
+            // other pushes of the same burst.
+            getIngestQueue(context).add(intent.getByteArrayExtra("data"));
+        }
+    }
+
+    private static synchronized IngestQueue getIngestQueue(Context context) {
+        if (sIngestQueue == null) {
+            sIngestQueue = new IngestQueue(context.getApplicationContext());
+        }
+        return sIngestQueue;
+    }
+
+    private static void appendTransactionId(NotificationInd nInd) {
+        if (MmsConfig.getTransIdEnabled()) {
+            byte [] contentLocation = nInd.getContentLocation();
+            if ('=' == contentLocation[contentLocation.length - 1]) {
+                byte [] transactionId = nInd.getTransactionId();
+                byte [] contentLocationWithId = new byte [contentLocation.length
+                                                          + transactionId.length];
+                System.arraycopy(contentLocation, 0, contentLocationWithId,
+                        0, contentLocation.length);
+                System.arraycopy(transactionId, 0, contentLocationWithId,
+                        contentLocation.length, transactionId.length);
+                nInd.setContentLocation(contentLocationWithId);
+            }
         }
     }
 
@@ -241,23 +382,9 @@ public class PushReceiver extends BroadcastReceiver {
             Context context, NotificationInd nInd) {
         byte[] rawLocation = nInd.getContentLocation();
         if (rawLocation != null) {
-            String location = new String(rawLocation);
-            String selection = Mms.CONTENT_LOCATION + " = ?";
-            String[] selectionArgs = new String[] { location };
-            Cursor cursor = SqliteWrapper.query(
-                    context, context.getContentResolver(),
-                    Mms.CONTENT_URI, new String[] { Mms._ID },
-                    selection, selectionArgs, null);
-            if (cursor != null) {
-                try {
-                    if (cursor.getCount() > 0) {
-                        // We already received the same notification before.
-                        return true;
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
+            // Only queries the provider if the location may have been seen.
+            return DuplicateFilter.getInstance().isDuplicateLocation(
+                    context, new String(rawLocation));
         }
         return false;
     }
@@ -86,14 +86,17 @@ public class ReadRecTransaction extends Transaction {
             mTransactionState.setState(TransactionState.SUCCESS);
             mTransactionState.setContentUri(uri);
         } catch (IOException e) {
+            setFailureCause(e);
             if (LOCAL_LOGV) {
                 Log.v(TAG, "Failed to send M-Read-Rec.Ind.", e);
             }
         } catch (MmsException e) {
+            setFailureCause(e);
             if (LOCAL_LOGV) {
                 Log.v(TAG, "Failed to load message from Outbox.", e);
             }
         } catch (RuntimeException e) {
+            setFailureCause(e);
             if (LOCAL_LOGV) {
                 Log.e(TAG, "Unexpected RuntimeException.", e);
             }
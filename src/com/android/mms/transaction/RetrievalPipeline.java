@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs the work that follows the download of a message on stage threads of
+ * its own, so that the transaction worker can start the next download while
+ * the previous message is parsed and written to the provider.
+ *
+ * A downloaded message goes through the stages in order: parse, persist,
+ * then post-processing (notification removal, recycler, ack). Each stage
+ * has one thread and a small bounded queue; a full queue blocks the stage
+ * feeding it, so no more than a few downloaded PDUs are held in memory and
+ * downloads slow down to the pace of the provider.
+ */
+public class RetrievalPipeline {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    public static final int STAGE_PARSE     = 0;
+    public static final int STAGE_PERSIST   = 1;
+    public static final int STAGE_POST      = 2;
+    private static final int STAGE_COUNT    = 3;
+
+    /**
+     * Returned by {@link Job#runStage} when the job is complete.
+     */
+    public static final int DONE            = STAGE_COUNT;
+
+    private static final String[] STAGE_NAMES = {
+        "parse", "persist", "post"
+    };
+
+    // Downloaded messages waiting for each stage.
+    private static final int QUEUE_CAPACITY = 2;
+
+    private static RetrievalPipeline sInstance;
+
+    private final Stage[] mStages = new Stage[STAGE_COUNT];
+
+    /**
+     * The work of one downloaded message.
+     */
+    public interface Job {
+        /**
+         * Run the part of the job belonging to a stage, on the thread of
+         * that stage.
+         *
+         * @return The next stage to run, which must come after this one,
+         *         or {@link #DONE}.
+         */
+        int runStage(int stage) throws Throwable;
+
+        /**
+         * Called once on a stage thread after the last stage ran, or after a
+         * stage failed, in which case the remaining stages are skipped.
+         *
+         * @param failure What the failed stage threw, or null.
+         */
+        void onFinished(Throwable failure);
+    }
+
+    RetrievalPipeline(int capacity) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new Stage(i, capacity);
+            mStages[i].start();
+        }
+    }
+
+    public static synchronized RetrievalPipeline getInstance() {
+        if (sInstance == null) {
+            sInstance = new RetrievalPipeline(QUEUE_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue a job for a stage, waiting for room in its queue.
+     *
+     * @param stage The first stage to run.
+     */
+    public void submit(Job job, int stage) {
+        mStages[stage].put(job);
+    }
+
+    /**
+     * Returns one line per stage, suitable for logging.
+     */
+    public String[] getStats() {
+        String[] stats = new String[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stats[i] = mStages[i].getStats();
+        }
+        return stats;
+    }
+
+    private void advance(Job job, int next, int current) {
+        if ((next <= current) || (next >= DONE)) {
+            throw new IllegalStateException("Stage " + STAGE_NAMES[current]
+                    + " cannot be followed by " + next);
+        }
+        // Blocks while the next stage is backed up.
+        mStages[next].put(job);
+    }
+
+    private class Stage extends Thread {
+        private final int mStage;
+        private final BlockingQueue<Job> mQueue;
+
+        // Statistics, guarded by "this".
+        private int mMaxDepth;
+        private long mProcessed;
+        private long mBusyTime;
+
+        Stage(int stage, int capacity) {
+            super("RetrievalPipeline " + STAGE_NAMES[stage]);
+            mStage = stage;
+            mQueue = new ArrayBlockingQueue<Job>(capacity);
+            setDaemon(true);
+        }
+
+        void put(Job job) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mQueue.put(job);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                Job job;
+                try {
+                    job = mQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                int next;
+                try {
+                    next = job.runStage(mStage);
+                } catch (Throwable t) {
+                    // Reported by the job.
+                    finish(job, t);
+                    continue;
+                } finally {
+                    synchronized (this) {
+                        mProcessed++;
+                        mBusyTime += SystemClock.elapsedRealtime() - start;
+                    }
+                }
+
+                if (next == DONE) {
+                    finish(job, null);
+                    continue;
+                }
+                try {
+                    advance(job, next, mStage);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "[RetrievalPipeline] " + STAGE_NAMES[mStage] + " failed", e);
+                    finish(job, e);
+                }
+            }
+        }
+
+        private void finish(Job job, Throwable failure) {
+            try {
+                job.onFinished(failure);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "[RetrievalPipeline] Cannot finish job", e);
+            }
+        }
+
+        synchronized String getStats() {
+            long perSecond = (mBusyTime == 0) ? 0 : (mProcessed * 1000 / mBusyTime);
+            return STAGE_NAMES[mStage]
+                    + ": depth=" + mQueue.size()
+                    + " maxDepth=" + mMaxDepth
+                    + " processed=" + mProcessed
+                    + " avg=" + ((mProcessed == 0) ? 0 : (mBusyTime / mProcessed)) + "ms"
+                    + " throughput=" + perSecond + "/s";
+        }
+    }
+}
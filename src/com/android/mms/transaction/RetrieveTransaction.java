@@ -17,6 +17,7 @@
 
 package com.android.mms.transaction;
 
+import com.android.mms.LogTag;
 import com.android.mms.MmsConfig;
 import com.android.mms.ui.MessageUtils;
 import com.android.mms.util.DownloadManager;
@@ -54,8 +55,11 @@ import java.io.IOException;
  * <li>Creates appropriate M-Acknowledge.ind and sends it to MMSC server.
  * <li>Notifies the TransactionService about succesful completion.
  * </ul>
+ *
+ * Only the download runs on the transaction worker thread; the rest is
+ * handed to the {@link RetrievalPipeline}.
  */
-public class RetrieveTransaction extends Transaction implements Runnable {
+public class RetrieveTransaction extends Transaction {
     private static final String TAG = "RetrieveTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
@@ -64,6 +68,21 @@ public class RetrieveTransaction extends Transaction implements Runnable {
     private final String mContentLocation;
     private boolean mLocked;
 
+    // The Transaction-ID of a message found to be a duplicate from its headers.
+    private byte[] mDuplicateTransactionId;
+
+    // Stops the download of messages that were already stored.
+    private final PduHeaderScanner.Listener mDuplicateCheck = new PduHeaderScanner.Listener() {
+        public void onHeaders(String messageId, byte[] transactionId) throws IOException {
+            if ((messageId != null)
+                    && DuplicateFilter.getInstance().isDuplicateMessageId(mContext, messageId)) {
+                mDuplicateTransactionId = transactionId;
+                throw new HttpUtils.TransferAbortedException(
+                        "Duplicate message " + messageId);
+            }
+        }
+    };
+
     static final String[] PROJECTION = new String[] {
         Mms.CONTENT_LOCATION,
         Mms.LOCKED
@@ -121,102 +140,165 @@ public class RetrieveTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this).start();
-    }
-
-    public void run() {
+        boolean queued = false;
         try {
             // Change the downloading state of the M-Notification.ind.
             DownloadManager.getInstance().markState(
                     mUri, DownloadManager.STATE_DOWNLOADING);
 
             // Send GET request to MMSC and retrieve the response data.
-            byte[] resp = getPdu(mContentLocation);
-
-            // Parse M-Retrieve.conf
-            RetrieveConf retrieveConf = (RetrieveConf) new PduParser(resp).parse();
-            if (null == retrieveConf) {
-                throw new MmsException("Invalid M-Retrieve.conf PDU.");
+            // Messages already stored are recognized from their headers and
+            // not downloaded again.
+            byte[] resp;
+            try {
+                resp = getPdu(mContentLocation, mDuplicateCheck);
+            } catch (HttpUtils.TransferAbortedException e) {
+                onDuplicateAborted();
+                return;
             }
 
-            Uri msgUri = null;
-            if (isDuplicateMessage(mContext, retrieveConf)) {
-                // Mark this transaction as failed to prevent duplicate
-                // notification to user.
-                mTransactionState.setState(TransactionState.FAILED);
-                mTransactionState.setContentUri(mUri);
-            } else {
-                // Store M-Retrieve.conf into Inbox
-                PduPersister persister = PduPersister.getPduPersister(mContext);
-                msgUri = persister.persist(retrieveConf, Inbox.CONTENT_URI);
-
-                // The M-Retrieve.conf has been successfully downloaded.
-                mTransactionState.setState(TransactionState.SUCCESS);
-                mTransactionState.setContentUri(msgUri);
-                // Remember the location the message was downloaded from.
-                // Since it's not critical, it won't fail the transaction.
-                // Copy over the locked flag from the M-Notification.ind in case
-                // the user locked the message before activating the download.
-                updateContentLocation(mContext, msgUri, mContentLocation, mLocked);
+            // The rest is done by the pipeline stages, while this worker
+            // goes on with the next download.
+            RetrievalPipeline.getInstance().submit(
+                    new Retrieval(resp), RetrievalPipeline.STAGE_PARSE);
+            queued = true;
+        } catch (Throwable t) {
+            setFailureCause(t);
+            Log.e(TAG, Log.getStackTraceString(t));
+        } finally {
+            if (!queued) {
+                finish();
             }
+        }
+    }
+
+    private void finish() {
+        if (mTransactionState.getState() != TransactionState.SUCCESS) {
+            mTransactionState.setState(TransactionState.FAILED);
+            mTransactionState.setContentUri(mUri);
+            Log.e(TAG, "Retrieval failed.");
+        }
+        notifyObservers();
+    }
+
+    /**
+     * Parses, stores and acknowledges a downloaded M-Retrieve.conf on the
+     * {@link RetrievalPipeline} stages.
+     */
+    private class Retrieval implements RetrievalPipeline.Job {
+        private byte[] mResp;
+        private RetrieveConf mRetrieveConf;
+        private Uri mMsgUri;
+
+        Retrieval(byte[] resp) {
+            mResp = resp;
+        }
+
+        public int runStage(int stage) throws Throwable {
+            TransactionMetrics metrics = TransactionMetrics.getInstance();
+            long start = TransactionMetrics.now();
+            switch (stage) {
+                case RetrievalPipeline.STAGE_PARSE:
+                    // Parse M-Retrieve.conf
+                    mRetrieveConf = (RetrieveConf) new PduParser(mResp).parse();
+                    mResp = null;
+                    if (null == mRetrieveConf) {
+                        throw new MmsException("Invalid M-Retrieve.conf PDU.");
+                    }
+                    metrics.record(TransactionMetrics.PHASE_PARSE, getType(), start);
 
-            // Delete the corresponding M-Notification.ind.
-            SqliteWrapper.delete(mContext, mContext.getContentResolver(),
-                                 mUri, null, null);
+                    if (isDuplicateMessage(mContext, mRetrieveConf)) {
+                        // Mark this transaction as failed to prevent duplicate
+                        // notification to user.
+                        mTransactionState.setState(TransactionState.FAILED);
+                        mTransactionState.setContentUri(mUri);
+                        return RetrievalPipeline.STAGE_POST;
+                    }
+                    return RetrievalPipeline.STAGE_PERSIST;
+
+                case RetrievalPipeline.STAGE_PERSIST:
+                    // Store M-Retrieve.conf into Inbox
+                    PduPersister persister = PduPersister.getPduPersister(mContext);
+                    mMsgUri = persister.persist(mRetrieveConf, Inbox.CONTENT_URI);
+                    metrics.record(TransactionMetrics.PHASE_PERSIST, getType(), start);
+                    rememberMessage(mRetrieveConf);
+
+                    // The M-Retrieve.conf has been successfully downloaded.
+                    mTransactionState.setState(TransactionState.SUCCESS);
+                    mTransactionState.setContentUri(mMsgUri);
+                    // Remember the location the message was downloaded from.
+                    // Since it's not critical, it won't fail the transaction.
+                    // Copy over the locked flag from the M-Notification.ind in case
+                    // the user locked the message before activating the download.
+                    updateContentLocation(mContext, mMsgUri, mContentLocation, mLocked);
+                    return RetrievalPipeline.STAGE_POST;
+
+                default:
+                    // Delete the corresponding M-Notification.ind.
+                    SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                                         mUri, null, null);
 
-            if (msgUri != null) {
-                // Have to delete messages over limit *after* the delete above. Otherwise,
-                // it would be counted as part of the total.
-                Recycler.getMmsRecycler().deleteOldMessagesInSameThreadAsMessage(mContext, msgUri);
+                    if (mMsgUri != null) {
+                        // Have to delete messages over limit *after* the delete above.
+                        // Otherwise, it would be counted as part of the total.
+                        Recycler.getMmsRecycler().deleteOldMessagesInSameThreadAsMessage(
+                                mContext, mMsgUri);
+                    }
+
+                    // Send ACK to the Proxy-Relay to indicate we have fetched the
+                    // MM successfully.
+                    // Don't mark the transaction as failed if we failed to send it.
+                    sendAcknowledgeInd(mRetrieveConf.getTransactionId());
+                    return RetrievalPipeline.DONE;
             }
+        }
 
-            // Send ACK to the Proxy-Relay to indicate we have fetched the
-            // MM successfully.
-            // Don't mark the transaction as failed if we failed to send it.
-            sendAcknowledgeInd(retrieveConf);
-        } catch (Throwable t) {
-            Log.e(TAG, Log.getStackTraceString(t));
-        } finally {
-            if (mTransactionState.getState() != TransactionState.SUCCESS) {
-                mTransactionState.setState(TransactionState.FAILED);
-                mTransactionState.setContentUri(mUri);
-                Log.e(TAG, "Retrieval failed.");
+        public void onFinished(Throwable failure) {
+            if (failure != null) {
+                setFailureCause(failure);
+                Log.e(TAG, Log.getStackTraceString(failure));
             }
-            notifyObservers();
+            finish();
         }
     }
 
     private static boolean isDuplicateMessage(Context context, RetrieveConf rc) {
         byte[] rawMessageId = rc.getMessageId();
         if (rawMessageId != null) {
-            String messageId = new String(rawMessageId);
-            String selection = "(" + Mms.MESSAGE_ID + " = ? AND "
-                                   + Mms.MESSAGE_TYPE + " = ?)";
-            String[] selectionArgs = new String[] { messageId,
-                    String.valueOf(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) };
-            Cursor cursor = SqliteWrapper.query(
-                    context, context.getContentResolver(),
-                    Mms.CONTENT_URI, new String[] { Mms._ID },
-                    selection, selectionArgs, null);
-            if (cursor != null) {
-                try {
-                    if (cursor.getCount() > 0) {
-                        // We already received the same message before.
-                        return true;
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
+            // Only queries the provider if the Message-ID may have been seen.
+            return DuplicateFilter.getInstance().isDuplicateMessageId(
+                    context, new String(rawMessageId));
         }
         return false;
     }
 
-    private void sendAcknowledgeInd(RetrieveConf rc) throws MmsException, IOException {
+    /**
+     * Finish a retrieval that was stopped because the message is already
+     * stored. Like a duplicate found after the download, the notification is
+     * removed and the MMSC is told the message was retrieved.
+     */
+    private void onDuplicateAborted() throws MmsException, IOException {
+        TransactionMetrics.getInstance().increment(TransactionMetrics.COUNTER_DUPLICATE_ABORT);
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "Stopped downloading duplicate message: " + mContentLocation);
+        }
+
+        // Mark this transaction as failed to prevent duplicate
+        // notification to user.
+        mTransactionState.setState(TransactionState.FAILED);
+        mTransactionState.setContentUri(mUri);
+
+        // Delete the corresponding M-Notification.ind.
+        SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                             mUri, null, null);
+
+        sendAcknowledgeInd(mDuplicateTransactionId);
+    }
+
+    private void sendAcknowledgeInd(byte[] tranId) throws MmsException, IOException {
         // Send M-Acknowledge.ind to MMSC if required.
         // If the Transaction-ID isn't set in the M-Retrieve.conf, it means
         // the MMS proxy-relay doesn't require an ACK.
-        byte[] tranId = rc.getTransactionId();
         if (tranId != null) {
             // Create M-Acknowledge.ind
             AcknowledgeInd acknowledgeInd = new AcknowledgeInd(
@@ -226,15 +308,22 @@ public class RetrieveTransaction extends Transaction implements Runnable {
             String lineNumber = MessageUtils.getLocalNumber();
             acknowledgeInd.setFrom(new EncodedStringValue(lineNumber));
 
-            // Pack M-Acknowledge.ind and send it
+            // Pack M-Acknowledge.ind and queue it, it is sent by an AckTransaction
             if(MmsConfig.getNotifyWapMMSC()) {
-                sendPdu(new PduComposer(mContext, acknowledgeInd).make(), mContentLocation);
+                queueAck(new PduComposer(mContext, acknowledgeInd).make(), mContentLocation);
             } else {
-                sendPdu(new PduComposer(mContext, acknowledgeInd).make());
+                queueAck(new PduComposer(mContext, acknowledgeInd).make(), null);
             }
         }
     }
 
+    private static void rememberMessage(RetrieveConf rc) {
+        byte[] rawMessageId = rc.getMessageId();
+        if (rawMessageId != null) {
+            DuplicateFilter.getInstance().addMessageId(new String(rawMessageId));
+        }
+    }
+
     private static void updateContentLocation(Context context, Uri uri,
                                               String contentLocation,
                                               boolean locked) {
@@ -243,6 +332,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
         values.put(Mms.LOCKED, locked);     // preserve the state of the M-Notification.ind lock.
         SqliteWrapper.update(context, context.getContentResolver(),
                              uri, values, null, null);
+        DuplicateFilter.getInstance().addLocation(contentLocation);
     }
 
     @Override
@@ -19,6 +19,7 @@ package com.android.mms.transaction;
 
 import com.android.mms.R;
 import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
 import com.android.mms.util.DownloadManager;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduPersister;
@@ -26,23 +27,39 @@ import android.database.sqlite.SqliteWrapper;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.MmsSms.PendingMessages;
+import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Config;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
 public class RetryScheduler implements Observer {
     private static final String TAG = "RetryScheduler";
     private static final boolean DEBUG = false;
@@ -51,9 +68,59 @@ public class RetryScheduler implements Observer {
     private final Context mContext;
     private final ContentResolver mContentResolver;
 
+    // Failures are collected for this long and then written together.
+    private static final long BATCH_DELAY = 250;
+
+    private final Handler mBatchHandler;
+
+    // Failed transactions waiting for the next tick, guarded by itself.
+    private final ArrayList<Failure> mBatch = new ArrayList<Failure>();
+    private boolean mTickPending;
+
+    // Serializes the ticks and flush().
+    private final Object mCommitLock = new Object();
+
+    private static class Failure {
+        final Uri uri;
+        final long msgId;
+        final Throwable cause;
+
+        // Filled in from the provider while the batch is committed.
+        long pendingId = -1;
+        int msgType;
+        int retryIndex;
+        int respStatus;
+        long threadId = -1;
+
+        // The pending row update, once decided.
+        ContentValues values;
+
+        Failure(Uri uri, Throwable cause) {
+            this.uri = uri;
+            this.msgId = ContentUris.parseId(uri);
+            this.cause = cause;
+        }
+    }
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            try {
+                flush();
+            } finally {
+                if (isConnected()) {
+                    setRetryAlarm(mContext);
+                }
+            }
+        }
+    };
+
     private RetryScheduler(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mBatchHandler = new Handler(thread.getLooper());
     }
 
     private static RetryScheduler sInstance;
@@ -90,7 +157,9 @@ public class RetryScheduler implements Observer {
                     if (state.getState() == TransactionState.FAILED) {
                         Uri uri = state.getContentUri();
                         if (uri != null) {
-                            scheduleRetry(uri);
+                            synchronized (mBatch) {
+                                mBatch.add(new Failure(uri, t.getFailureCause()));
+                            }
                         }
                     }
                 } finally {
@@ -98,130 +167,312 @@ public class RetryScheduler implements Observer {
                 }
             }
         } finally {
-            if (isConnected()) {
-                setRetryAlarm(mContext);
+            // The retry alarm is set once per tick too.
+            synchronized (mBatch) {
+                if (!mTickPending) {
+                    mTickPending = true;
+                    mBatchHandler.postDelayed(mTick, BATCH_DELAY);
+                }
             }
         }
     }
 
-    private void scheduleRetry(Uri uri) {
-        long msgId = ContentUris.parseId(uri);
+    /**
+     * Write the retry state of the failures queued so far, on the calling
+     * thread. Called before the pending messages are scanned, so that a
+     * transaction that just failed isn't launched again at its old due time.
+     */
+    public void flush() {
+        synchronized (mCommitLock) {
+            ArrayList<Failure> batch;
+            synchronized (mBatch) {
+                mTickPending = false;
+                if (mBatch.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<Failure>(mBatch);
+                mBatch.clear();
+            }
+            scheduleRetries(batch);
+        }
+    }
 
-        Uri.Builder uriBuilder = PendingMessages.CONTENT_URI.buildUpon();
-        uriBuilder.appendQueryParameter("protocol", "mms");
-        uriBuilder.appendQueryParameter("message", String.valueOf(msgId));
+    /**
+     * Returns the retry scheme for a transaction that has been tried
+     * retryIndex times and last failed with the given failure class.
+     */
+    private AbstractRetryScheme getRetryScheme(int retryIndex, int failure) {
+        if (MmsConfig.getAdaptiveRetryEnabled()) {
+            return new AdaptiveRetryScheme(retryIndex, failure);
+        }
+        return new DefaultRetryScheme(mContext, retryIndex);
+    }
 
-        Cursor cursor = SqliteWrapper.query(mContext, mContentResolver,
-                uriBuilder.build(), null, null, null, null);
+    /**
+     * Schedule the retries of a batch of failed transactions. The pending
+     * rows and the messages are each read with one query, and all updates
+     * go to the provider in one batch per authority, so the cost doesn't
+     * grow with a round trip per query and update for every failure.
+     */
+    private void scheduleRetries(ArrayList<Failure> batch) {
+        // The last failure wins if a message failed twice in a tick.
+        LinkedHashMap<Long, Failure> failures = new LinkedHashMap<Long, Failure>();
+        for (Failure failure : batch) {
+            failures.put(failure.msgId, failure);
+        }
+        String inClause = " IN (" + TextUtils.join(",", failures.keySet()) + ")";
 
-        if (cursor != null) {
-            try {
-                if ((cursor.getCount() == 1) && cursor.moveToFirst()) {
-                    int msgType = cursor.getInt(cursor.getColumnIndexOrThrow(
-                            PendingMessages.MSG_TYPE));
-
-                    int retryIndex = cursor.getInt(cursor.getColumnIndexOrThrow(
-                            PendingMessages.RETRY_INDEX)) + 1; // Count this time.
-
-                    // TODO Should exactly understand what was happened.
-                    int errorType = MmsSms.ERR_TYPE_GENERIC;
-
-                    DefaultRetryScheme scheme = new DefaultRetryScheme(mContext, retryIndex);
-
-                    ContentValues values = new ContentValues(4);
-                    long current = System.currentTimeMillis();
-                    boolean isRetryDownloading =
-                            (msgType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
-                    boolean retry = true;
-                    int respStatus = getResponseStatus(msgId);
-                    if (respStatus == PduHeaders.RESPONSE_STATUS_ERROR_SENDING_ADDRESS_UNRESOLVED) {
-                        DownloadManager.getInstance().showErrorCodeToast(R.string.invalid_destination);
-                        retry = false;
-                    }
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "scheduleRetries: " + failures.size() + " failed transactions");
+        }
 
-                    if ((retryIndex < scheme.getRetryLimit()) && retry) {
-                        long retryAt = current + scheme.getWaitingInterval();
+        loadPendingRows(failures, inClause);
+        loadMessages(failures, inClause);
 
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "scheduleRetry: retry for " + uri + " is scheduled at "
-                                    + (retryAt - System.currentTimeMillis()) + "ms from now");
-                        }
+        ArrayList<ContentProviderOperation> pendingOps =
+                new ArrayList<ContentProviderOperation>();
+        ArrayList<ContentProviderOperation> mmsOps =
+                new ArrayList<ContentProviderOperation>();
+        ArrayList<Failure> updated = new ArrayList<Failure>();
+        ArrayList<Failure> retries = new ArrayList<Failure>();
+        ArrayList<Long> retryTimes = new ArrayList<Long>();
+        boolean invalidDestination = false;
+        boolean sendFailed = false;
+        long downloadFailedThreadId = -1;
+        Uri downloadFailedUri = null;
+        int downloadFailedCount = 0;
+        long current = System.currentTimeMillis();
 
-                        values.put(PendingMessages.DUE_TIME, retryAt);
+        for (Failure f : failures.values()) {
+            if (f.pendingId == -1) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Cannot found correct pending status for: " + f.msgId);
+                }
+                continue;
+            }
 
-                        if (isRetryDownloading) {
-                            // Downloading process is transiently failed.
-                            DownloadManager.getInstance().markState(
-                                    uri, DownloadManager.STATE_TRANSIENT_FAILURE);
-                        }
-                    } else {
-                        errorType = MmsSms.ERR_TYPE_GENERIC_PERMANENT;
-                        if (isRetryDownloading) {
-                            Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(), uri,
-                                    new String[] { Mms.THREAD_ID }, null, null, null);
-                            
-                            long threadId = -1;
-                            if (c != null) {
-                                try {
-                                    if (c.moveToFirst()) {
-                                        threadId = c.getLong(0);
-                                    }
-                                } finally {
-                                    c.close();
-                                }
-                            }
+            boolean retry = true;
+            if (f.respStatus == PduHeaders.RESPONSE_STATUS_ERROR_SENDING_ADDRESS_UNRESOLVED) {
+                invalidDestination = true;
+                retry = false;
+            }
 
-                            if (threadId != -1) {
-                                // Downloading process is permanently failed.
-                                MessagingNotification.notifyDownloadFailed(mContext, threadId);
-                            }
+            // Find out what happened, so that failures that can't go
+            // away by themselves aren't retried.
+            int failure = TransactionFailure.classifyResponseStatus(f.respStatus,
+                    TransactionFailure.classify(f.cause));
+            int errorType = MmsConfig.getAdaptiveRetryEnabled()
+                    ? TransactionFailure.toErrorType(failure) : MmsSms.ERR_TYPE_GENERIC;
 
-                            DownloadManager.getInstance().markState(
-                                    uri, DownloadManager.STATE_PERMANENT_FAILURE);
-                        } else {
-                            // Mark the failed message as unread.
-                            ContentValues readValues = new ContentValues(1);
-                            readValues.put(Mms.READ, 0);
-                            SqliteWrapper.update(mContext, mContext.getContentResolver(),
-                                    uri, readValues, null, null);
-                            MessagingNotification.notifySendFailed(mContext, true);
-                        }
+            AbstractRetryScheme scheme = getRetryScheme(f.retryIndex, failure);
+
+            ContentValues values = new ContentValues(4);
+            boolean isRetryDownloading =
+                    (f.msgType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+
+            if ((f.retryIndex < scheme.getRetryLimit()) && retry) {
+                // The due time is set below, once the batch is coalesced.
+                retries.add(f);
+                retryTimes.add(current + scheme.getWaitingInterval());
+
+                if (isRetryDownloading) {
+                    // Downloading process is transiently failed.
+                    mmsOps.add(DownloadManager.getInstance().newMarkStateOperation(
+                            f.uri, DownloadManager.STATE_TRANSIENT_FAILURE));
+                }
+            } else {
+                if (errorType < MmsSms.ERR_TYPE_GENERIC_PERMANENT) {
+                    // Out of retries for a failure that could have been transient.
+                    errorType = MmsSms.ERR_TYPE_GENERIC_PERMANENT;
+                }
+                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                    Log.v(TAG, "scheduleRetry: giving up on " + f.uri + " after "
+                            + f.retryIndex + " tries, last failure "
+                            + TransactionFailure.getName(failure));
+                }
+                if (isRetryDownloading) {
+                    if (f.threadId != -1) {
+                        downloadFailedThreadId = f.threadId;
                     }
+                    downloadFailedUri = f.uri;
+                    downloadFailedCount++;
 
-                    values.put(PendingMessages.ERROR_TYPE,  errorType);
-                    values.put(PendingMessages.RETRY_INDEX, retryIndex);
-                    values.put(PendingMessages.LAST_TRY,    current);
-
-                    int columnIndex = cursor.getColumnIndexOrThrow(
-                            PendingMessages._ID);
-                    long id = cursor.getLong(columnIndex);
-                    SqliteWrapper.update(mContext, mContentResolver,
-                            PendingMessages.CONTENT_URI,
-                            values, PendingMessages._ID + "=" + id, null);
-                } else if (LOCAL_LOGV) {
-                    Log.v(TAG, "Cannot found correct pending status for: " + msgId);
+                    // Downloading process is permanently failed.
+                    mmsOps.add(DownloadManager.getInstance().newMarkStateOperation(
+                            f.uri, DownloadManager.STATE_PERMANENT_FAILURE));
+                } else {
+                    // Mark the failed message as unread.
+                    mmsOps.add(ContentProviderOperation.newUpdate(f.uri)
+                            .withValue(Mms.READ, 0)
+                            .build());
+                    sendFailed = true;
                 }
-            } finally {
-                cursor.close();
             }
+
+            values.put(PendingMessages.ERROR_TYPE,  errorType);
+            values.put(PendingMessages.RETRY_INDEX, f.retryIndex);
+            values.put(PendingMessages.LAST_TRY,    current);
+            f.values = values;
+            updated.add(f);
+        }
+
+        coalesceRetryTimes(retryTimes);
+        for (int i = 0; i < retries.size(); i++) {
+            long retryAt = retryTimes.get(i);
+            retries.get(i).values.put(PendingMessages.DUE_TIME, retryAt);
+
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "scheduleRetry: retry for " + retries.get(i).uri
+                        + " is scheduled at " + (retryAt - System.currentTimeMillis())
+                        + "ms from now");
+            }
+        }
+
+        for (Failure f : updated) {
+            pendingOps.add(ContentProviderOperation.newUpdate(PendingMessages.CONTENT_URI)
+                    .withValues(f.values)
+                    .withSelection(PendingMessages._ID + "=" + f.pendingId, null)
+                    .build());
+        }
+
+        applyBatch(Mms.CONTENT_URI.getAuthority(), mmsOps);
+        applyBatch(PendingMessages.CONTENT_URI.getAuthority(), pendingOps);
+
+        // Tell the user once per tick, however many messages failed.
+        if (invalidDestination) {
+            DownloadManager.getInstance().showErrorCodeToast(R.string.invalid_destination);
+        }
+        if (downloadFailedCount == 1) {
+            DownloadManager.getInstance().showPermanentFailureToast(downloadFailedUri);
+        } else if (downloadFailedCount > 1) {
+            DownloadManager.getInstance().showPermanentFailureToast(downloadFailedCount);
+        }
+        if (downloadFailedThreadId != -1) {
+            MessagingNotification.notifyDownloadFailed(mContext, downloadFailedThreadId);
+        }
+        if (sendFailed) {
+            MessagingNotification.notifySendFailed(mContext, true);
         }
     }
 
-    private int getResponseStatus(long msgID) {
-        int respStatus = 0;
+    private void loadPendingRows(HashMap<Long, Failure> failures, String inClause) {
+        Uri.Builder uriBuilder = PendingMessages.CONTENT_URI.buildUpon();
+        uriBuilder.appendQueryParameter("protocol", "mms");
+
         Cursor cursor = SqliteWrapper.query(mContext, mContentResolver,
-                Mms.Outbox.CONTENT_URI, null, Mms._ID + "=" + msgID, null, null);
+                uriBuilder.build(), null, PendingMessages.MSG_ID + inClause, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        HashSet<Long> seen = new HashSet<Long>();
+        try {
+            int msgIdIndex = cursor.getColumnIndexOrThrow(PendingMessages.MSG_ID);
+            int msgTypeIndex = cursor.getColumnIndexOrThrow(PendingMessages.MSG_TYPE);
+            int retryIndexIndex = cursor.getColumnIndexOrThrow(PendingMessages.RETRY_INDEX);
+            int idIndex = cursor.getColumnIndexOrThrow(PendingMessages._ID);
+            while (cursor.moveToNext()) {
+                long msgId = cursor.getLong(msgIdIndex);
+                Failure f = failures.get(msgId);
+                if (f == null) {
+                    continue;
+                }
+                if (!seen.add(msgId)) {
+                    // More than one pending row, the status isn't reliable.
+                    f.pendingId = -1;
+                    continue;
+                }
+                f.pendingId = cursor.getLong(idIndex);
+                f.msgType = cursor.getInt(msgTypeIndex);
+                f.retryIndex = cursor.getInt(retryIndexIndex) + 1; // Count this time.
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Load the response status and thread of the failed messages. Only
+     * messages still in the outbox have a meaningful response status.
+     */
+    private void loadMessages(HashMap<Long, Failure> failures, String inClause) {
+        Cursor cursor = SqliteWrapper.query(mContext, mContentResolver, Mms.CONTENT_URI,
+                new String[] { Mms._ID, Mms.MESSAGE_BOX, Mms.RESPONSE_STATUS, Mms.THREAD_ID },
+                Mms._ID + inClause, null, null);
+        if (cursor == null) {
+            return;
+        }
+
         try {
-            if (cursor.moveToFirst()) {
-                respStatus = cursor.getInt(cursor.getColumnIndexOrThrow(Mms.RESPONSE_STATUS));
+            while (cursor.moveToNext()) {
+                Failure f = failures.get(cursor.getLong(0));
+                if (f == null) {
+                    continue;
+                }
+                if (cursor.getInt(1) == Mms.MESSAGE_BOX_OUTBOX) {
+                    f.respStatus = cursor.getInt(2);
+                    if (f.respStatus != 0) {
+                        Log.e(TAG, "Response status is: " + f.respStatus);
+                    }
+                }
+                f.threadId = cursor.getLong(3);
             }
         } finally {
             cursor.close();
         }
-        if (respStatus != 0) {
-            Log.e(TAG, "Response status is: " + respStatus);
+    }
+
+    private void applyBatch(String authority, ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(authority, ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "applyBatch failed for " + authority, e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "applyBatch failed for " + authority, e);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "applyBatch failed for " + authority, e);
+        }
+    }
+
+    /**
+     * Move retry times forward onto a retry that is already scheduled a
+     * little later, if any, so that they are handled by one alarm and one
+     * connection set up instead of several. Retries of the same batch are
+     * coalesced with each other too.
+     */
+    private void coalesceRetryTimes(ArrayList<Long> retryTimes) {
+        long window = MmsConfig.getRetryCoalesceWindow();
+        if ((window <= 0) || retryTimes.isEmpty()) {
+            return;
+        }
+
+        TreeSet<Long> dueTimes = new TreeSet<Long>();
+        long latest = Collections.max(retryTimes);
+        Cursor cursor = PduPersister.getPduPersister(mContext).getPendingMessages(
+                latest + window);
+        if (cursor != null) {
+            try {
+                int columnIndex = cursor.getColumnIndexOrThrow(PendingMessages.DUE_TIME);
+                while (cursor.moveToNext()) {
+                    dueTimes.add(cursor.getLong(columnIndex));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        for (int i = 0; i < retryTimes.size(); i++) {
+            long retryAt = retryTimes.get(i);
+            SortedSet<Long> later = dueTimes.tailSet(retryAt);
+            if (!later.isEmpty() && (later.first() - retryAt <= window)) {
+                retryAt = later.first();
+                retryTimes.set(i, retryAt);
+            }
+            dueTimes.add(retryAt);
         }
-        return respStatus;
     }
 
     public static void setRetryAlarm(Context context) {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Remembers the addresses of the MMSC and proxy hosts and the host routes
+ * requested for them, so that the transactions of one MMS APN lease don't
+ * each look up the same host and ask for the same route again.
+ *
+ * Lookups are cached for a while, including failed ones. Routes only live as
+ * long as the APN they were set up on: the cache is cleared when the lease
+ * ends or the APN changes.
+ */
+public class RouteCache {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final long HOST_TTL = 5 * 60 * 1000;
+    private static final long UNKNOWN_HOST_TTL = 30 * 1000;
+
+    private static final RouteCache sInstance = new RouteCache();
+
+    private final HashMap<String, HostEntry> mHosts = new HashMap<String, HostEntry>();
+    private final HashSet<InetAddress> mRoutes = new HashSet<InetAddress>();
+    private String mApn;
+
+    private static class HostEntry {
+        final InetAddress mAddress;     // null if the host is unknown
+        final long mExpiry;
+
+        HostEntry(InetAddress address, long expiry) {
+            mAddress = address;
+            mExpiry = expiry;
+        }
+    }
+
+    private RouteCache() {
+    }
+
+    public static RouteCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Look up a host name, or an address in dot or colon notation.
+     *
+     * @throws UnknownHostException if the host doesn't exist, now or at the
+     *         last lookup, which is remembered for a short while.
+     */
+    public InetAddress lookupHost(String hostname) throws UnknownHostException {
+        TransactionMetrics metrics = TransactionMetrics.getInstance();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            HostEntry entry = mHosts.get(hostname);
+            if ((entry != null) && (entry.mExpiry > now)) {
+                metrics.increment(TransactionMetrics.COUNTER_DNS_HIT);
+                if (entry.mAddress == null) {
+                    throw new UnknownHostException(hostname);
+                }
+                return entry.mAddress;
+            }
+        }
+
+        // Don't hold the lock while waiting for DNS.
+        metrics.increment(TransactionMetrics.COUNTER_DNS_MISS);
+        InetAddress address = null;
+        try {
+            address = InetAddress.getByName(hostname);
+            return address;
+        } finally {
+            synchronized (this) {
+                mHosts.put(hostname, new HostEntry(address,
+                        now + ((address != null) ? HOST_TTL : UNKNOWN_HOST_TTL)));
+            }
+        }
+    }
+
+    /**
+     * Make sure a route to the given address exists over the MMS APN,
+     * requesting it unless it was already set up on the current APN.
+     *
+     * @return false if the route could not be set up.
+     */
+    public boolean requestRouteToHost(ConnectivityManager connMgr, InetAddress address) {
+        TransactionMetrics metrics = TransactionMetrics.getInstance();
+        synchronized (this) {
+            if (mRoutes.contains(address)) {
+                metrics.increment(TransactionMetrics.COUNTER_ROUTE_HIT);
+                return true;
+            }
+        }
+        metrics.increment(TransactionMetrics.COUNTER_ROUTE_MISS);
+
+        if (!(address instanceof Inet4Address)) {
+            // ConnectivityManager can only add host routes for IPv4; an IPv6
+            // host has to be reached over whatever route the system has.
+            Log.w(TAG, "Cannot request a route to " + address.getHostAddress()
+                    + ", not an IPv4 address");
+            return true;
+        }
+
+        byte[] addrBytes = address.getAddress();
+        int addr = ((addrBytes[3] & 0xff) << 24)
+                | ((addrBytes[2] & 0xff) << 16)
+                | ((addrBytes[1] & 0xff) << 8)
+                |  (addrBytes[0] & 0xff);
+        if (!connMgr.requestRouteToHost(ConnectivityManager.TYPE_MOBILE_MMS, addr)) {
+            return false;
+        }
+        synchronized (this) {
+            mRoutes.add(address);
+        }
+        return true;
+    }
+
+    /**
+     * Called when the MMS APN comes up. If it is a different APN than the
+     * previous one, everything learned on the previous one is dropped.
+     */
+    public synchronized void onApnConnected(String apn) {
+        if ((mApn != null) && !mApn.equals(apn)) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "[RouteCache] APN changed from " + mApn + " to " + apn);
+            }
+            mHosts.clear();
+            mRoutes.clear();
+        }
+        mApn = apn;
+    }
+
+    /**
+     * Called when the MMS APN lease ends, which takes its host routes with it.
+     */
+    public synchronized void onLeaseEnded() {
+        mRoutes.clear();
+    }
+}
@@ -57,12 +57,11 @@ import java.util.Arrays;
  * <li>Notifies the TransactionService about successful completion.
  * </ul>
  */
-public class SendTransaction extends Transaction implements Runnable {
+public class SendTransaction extends Transaction {
     private static final String TAG = "SendTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
 
-    private Thread mThread;
     private final Uri mSendReqURI;
 
     public SendTransaction(Context context,
@@ -81,11 +80,6 @@ public class SendTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        mThread = new Thread(this);
-        mThread.start();
-    }
-
-    public void run() {
         try {
             RateController rateCtlr = RateController.getInstance();
             if (rateCtlr.isLimitSurpassed() && !rateCtlr.isAllowedByUser()) {
@@ -114,9 +108,17 @@ public class SendTransaction extends Transaction implements Runnable {
             }
 
             // Pack M-Send.req, send it, retrieve confirmation data, and parse it
+            // The part data is streamed from the parts' files when possible,
+            // so a large attachment never has to fit in the heap at once.
             long tokenKey = ContentUris.parseId(mSendReqURI);
-            byte[] response = sendPdu(SendingProgressTokenManager.get(tokenKey),
-                                      new PduComposer(mContext, sendReq).make());
+            long token = SendingProgressTokenManager.get(tokenKey);
+            ProgressCallbackEntity.Content pdu = StreamingPduComposer.compose(mContext, sendReq);
+            byte[] response;
+            if (pdu != null) {
+                response = sendPdu(token, pdu, mTransactionSettings.getMmscUrl());
+            } else {
+                response = sendPdu(token, new PduComposer(mContext, sendReq).make());
+            }
             SendingProgressTokenManager.remove(tokenKey);
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -124,10 +126,13 @@ public class SendTransaction extends Transaction implements Runnable {
                 Log.d(TAG, "[SendTransaction] run: send mms msg (" + mId + "), resp=" + respStr);
             }
 
+            long start = TransactionMetrics.now();
             SendConf conf = (SendConf) new PduParser(response).parse();
             if (conf == null) {
                 Log.e(TAG, "No M-Send.conf received.");
             }
+            TransactionMetrics.getInstance().record(
+                    TransactionMetrics.PHASE_PARSE, getType(), start);
 
             // Check whether the responding Transaction-ID is consistent
             // with the sent one.
@@ -164,6 +169,7 @@ public class SendTransaction extends Transaction implements Runnable {
             mTransactionState.setState(TransactionState.SUCCESS);
             mTransactionState.setContentUri(uri);
         } catch (Throwable t) {
+            setFailureCause(t);
             Log.e(TAG, Log.getStackTraceString(t));
         } finally {
             if (mTransactionState.getState() != TransactionState.SUCCESS) {
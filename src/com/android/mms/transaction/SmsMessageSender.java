@@ -22,6 +22,7 @@ import com.android.mms.ui.MessagingPreferenceActivity;
 import com.google.android.mms.MmsException;
 import android.database.sqlite.SqliteWrapper;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -32,6 +33,9 @@ import android.preference.PreferenceManager;
 import android.provider.Telephony.Sms;
 import android.util.Log;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class SmsMessageSender implements MessageSender {
     protected final Context mContext;
     protected final int mNumberOfDests;
@@ -52,6 +56,18 @@ public class SmsMessageSender implements MessageSender {
     private static final int COLUMN_REPLY_PATH_PRESENT = 0;
     private static final int COLUMN_SERVICE_CENTER     = 1;
 
+    private static final Uri QUEUED_URI = Uri.parse("content://sms/queued");
+
+    // The reply service center of recently used threads, null included.
+    private static final int MAX_CACHED_SERVICE_CENTERS = 32;
+    private static final LinkedHashMap<Long, String> sServiceCenters =
+            new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_CACHED_SERVICE_CENTERS;
+        }
+    };
+
     public SmsMessageSender(Context context, String[] dests, String msgText, long threadId) {
         mContext = context;
         mMessageText = msgText;
@@ -85,18 +101,35 @@ public class SmsMessageSender implements MessageSender {
                 MessagingPreferenceActivity.SMS_DELIVERY_REPORT_MODE,
                 DEFAULT_DELIVERY_REPORT_MODE);
 
+        // The same values as Sms.addMessageToUri(), but all of them inserted at once.
+        ContentValues[] messages = new ContentValues[mNumberOfDests];
         for (int i = 0; i < mNumberOfDests; i++) {
-            try {
-                Sms.addMessageToUri(mContext.getContentResolver(), 
-                        Uri.parse("content://sms/queued"), mDests[i],
-                        mMessageText, null, mTimestamp,
-                        true /* read */,
-                        requestDeliveryReport,
-                        mThreadId);
-            } catch (SQLiteException e) {
-                SqliteWrapper.checkSQLiteException(mContext, e);
+            ContentValues values = new ContentValues(7);
+            values.put(Sms.ADDRESS, mDests[i]);
+            values.put(Sms.DATE, mTimestamp);
+            values.put(Sms.READ, 1);
+            values.putNull(Sms.SUBJECT);
+            values.put(Sms.BODY, mMessageText);
+            if (requestDeliveryReport) {
+                values.put(Sms.STATUS, Sms.STATUS_PENDING);
+            }
+            if (mThreadId != -1L) {
+                values.put(Sms.THREAD_ID, mThreadId);
             }
+            messages[i] = values;
+        }
+        try {
+            mContext.getContentResolver().bulkInsert(QUEUED_URI, messages);
+        } catch (SQLiteException e) {
+            SqliteWrapper.checkSQLiteException(mContext, e);
+        }
+
+        // Our message is now the latest of the thread, so there is no
+        // service center to reply to until another one comes in.
+        synchronized (sServiceCenters) {
+            sServiceCenters.put(mThreadId, null);
         }
+
         // Notify the SmsReceiverService to send the message out
         mContext.sendBroadcast(new Intent(SmsReceiverService.ACTION_SEND_MESSAGE,
                 null,
@@ -117,8 +150,24 @@ public class SmsMessageSender implements MessageSender {
      * message in the conversation, but only if it is a message from
      * the other party, and only if <code>TP-Reply-Path</code> is set.
      * Otherwise, return null.
+     *
+     * The answer is cached until {@link #invalidateServiceCenter(long)}
+     * is called for the thread.
      */
     private String getOutgoingServiceCenter(long threadId) {
+        synchronized (sServiceCenters) {
+            if (sServiceCenters.containsKey(threadId)) {
+                return sServiceCenters.get(threadId);
+            }
+        }
+        String serviceCenter = queryOutgoingServiceCenter(threadId);
+        synchronized (sServiceCenters) {
+            sServiceCenters.put(threadId, serviceCenter);
+        }
+        return serviceCenter;
+    }
+
+    private String queryOutgoingServiceCenter(long threadId) {
         Cursor cursor = null;
 
         try {
@@ -139,6 +188,26 @@ public class SmsMessageSender implements MessageSender {
         }
     }
 
+    /**
+     * Forget the reply service center of a thread, because a message was
+     * received on it.
+     */
+    public static void invalidateServiceCenter(long threadId) {
+        synchronized (sServiceCenters) {
+            sServiceCenters.remove(threadId);
+        }
+    }
+
+    /**
+     * Forget the reply service centers of all threads, when messages were
+     * changed or threads deleted.
+     */
+    public static void invalidateServiceCenters() {
+        synchronized (sServiceCenters) {
+            sServiceCenters.clear();
+        }
+    }
+
     private void log(String msg) {
         Log.d(LogTag.TAG, "[SmsMsgSender] " + msg);
     }
@@ -20,6 +20,7 @@ package com.android.mms.transaction;
 import static android.content.Intent.ACTION_BOOT_COMPLETED;
 import static android.provider.Telephony.Sms.Intents.SMS_RECEIVED_ACTION;
 
+import com.android.mms.MmsConfig;
 import com.android.mms.data.Contact;
 import com.android.mms.ui.ClassZeroActivity;
 import com.android.mms.util.Recycler;
@@ -36,13 +37,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Threads;
 import android.provider.Telephony.Sms.Inbox;
@@ -60,17 +62,42 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.mms.R;
 import com.android.mms.LogTag;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * This service essentially plays the role of a "worker thread", allowing us to store
  * incoming messages to the database, update notifications, etc. without blocking the
  * main thread that SmsReceiver runs on.
+ *
+ * The work runs on three lanes, each its own thread, so that none of them waits
+ * behind another: one sends the queued messages, one stores received messages, and
+ * one does the maintenance that can wait, like recycling old messages.
  */
 public class SmsReceiverService extends Service {
     private static final String TAG = "SmsReceiverService";
 
-    private ServiceHandler mServiceHandler;
-    private Looper mServiceLooper;
-    private boolean mSending;
+    // Messages stored at once, so that the first of a long backlog is notified soon.
+    private static final int MAX_RECEIVED_BATCH = 50;
+
+    private Lane mSendLane;
+    private Lane mReceiveLane;
+    private Lane mMaintenanceLane;
+
+    // The work started on the lanes and not done yet, and the last start id done.
+    private final Object mWorkLock = new Object();
+    private int mOutstandingWork;
+    private int mLastStartId;
+
+    // Received messages waiting to be stored together, on the receive lane.
+    private final ArrayList<ReceivedSms> mReceived = new ArrayList<ReceivedSms>();
+
+    private static final IngestStats sIngestStats = new IngestStats();
 
     public static final String MESSAGE_SENT_ACTION =
         "com.android.mms.transaction.MESSAGE_SENT";
@@ -81,27 +108,8 @@ public class SmsReceiverService extends Service {
     public static final String ACTION_SEND_MESSAGE =
         "com.android.mms.transaction.SEND_MESSAGE";
 
-    // This must match the column IDs below.
-    private static final String[] SEND_PROJECTION = new String[] {
-        Sms._ID,        //0
-        Sms.THREAD_ID,  //1
-        Sms.ADDRESS,    //2
-        Sms.BODY,       //3
-        Sms.STATUS,     //4
-
-    };
-
     public Handler mToastHandler = new Handler();
 
-    // This must match SEND_PROJECTION.
-    private static final int SEND_COLUMN_ID         = 0;
-    private static final int SEND_COLUMN_THREAD_ID  = 1;
-    private static final int SEND_COLUMN_ADDRESS    = 2;
-    private static final int SEND_COLUMN_BODY       = 3;
-    private static final int SEND_COLUMN_STATUS     = 4;
-
-    private int mResultCode;
-
     @Override
     public void onCreate() {
         // Temporarily removed for this duplicate message track down.
@@ -109,14 +117,12 @@ public class SmsReceiverService extends Service {
 //            Log.v(TAG, "onCreate");
 //        }
 
-        // Start up the thread running the service.  Note that we create a
-        // separate thread because the service normally runs in the process's
+        // Start up the threads running the service.  Note that we create
+        // separate threads because the service normally runs in the process's
         // main thread, which we don't want to block.
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper);
+        mSendLane = new Lane("send");
+        mReceiveLane = new Lane("receive");
+        mMaintenanceLane = new Lane("maintenance");
     }
 
     @Override
@@ -126,12 +132,16 @@ public class SmsReceiverService extends Service {
 //            Log.v(TAG, "onStart: #" + startId + ": " + intent.getExtras());
 //        }
 
-        mResultCode = intent != null ? intent.getIntExtra("result", 0) : 0;
-
-        Message msg = mServiceHandler.obtainMessage();
-        msg.arg1 = startId;
-        msg.obj = intent;
-        mServiceHandler.sendMessage(msg);
+        String action = (intent != null) ? intent.getAction() : null;
+        Lane lane;
+        if (SMS_RECEIVED_ACTION.equals(action)) {
+            lane = mReceiveLane;
+        } else if (action != null) {
+            lane = mSendLane;
+        } else {
+            lane = mMaintenanceLane;
+        }
+        execute(lane, new ServiceRequest(intent, startId, SystemClock.uptimeMillis()));
         return Service.START_NOT_STICKY;
     }
 
@@ -141,7 +151,9 @@ public class SmsReceiverService extends Service {
 //        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
 //            Log.v(TAG, "onDestroy");
 //        }
-        mServiceLooper.quit();
+        mSendLane.quit();
+        mReceiveLane.quit();
+        mMaintenanceLane.quit();
     }
 
     @Override
@@ -149,19 +161,174 @@ public class SmsReceiverService extends Service {
         return null;
     }
 
-    private final class ServiceHandler extends Handler {
-        public ServiceHandler(Looper looper) {
-            super(looper);
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mSendLane.getStats());
+        writer.println(mReceiveLane.getStats());
+        writer.println(mMaintenanceLane.getStats());
+        writer.println("Send queue: " + SmsSendQueue.getInstance(this).getStats());
+        writer.println("Ingest: " + sIngestStats);
+        writer.println("Recycler: " + Recycler.getSmsRecycler().getStats());
+    }
+
+    /**
+     * A thread of its own the service's work runs on, which keeps track of
+     * how long the work waits for it.
+     */
+    private static final class Lane extends Handler {
+        private final String mName;
+        private int mQueued;
+        private int mMaxQueued;
+        private int mHandled;
+        private long mTotalWait;
+        private long mMaxWait;
+
+        Lane(String name) {
+            super(startThread(TAG + "." + name));
+            mName = name;
+        }
+
+        private static Looper startThread(String name) {
+            HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            return thread.getLooper();
+        }
+
+        void execute(final Runnable work) {
+            final long queuedAt = SystemClock.uptimeMillis();
+            synchronized (this) {
+                mQueued++;
+                mMaxQueued = Math.max(mMaxQueued, mQueued);
+            }
+            post(new Runnable() {
+                public void run() {
+                    long wait = SystemClock.uptimeMillis() - queuedAt;
+                    synchronized (Lane.this) {
+                        mQueued--;
+                        mHandled++;
+                        mTotalWait += wait;
+                        mMaxWait = Math.max(mMaxWait, wait);
+                    }
+                    work.run();
+                }
+            });
+        }
+
+        void quit() {
+            getLooper().quit();
+        }
+
+        synchronized String getStats() {
+            return "Lane " + mName + ": queued=" + mQueued
+                    + " maxQueued=" + mMaxQueued
+                    + " handled=" + mHandled
+                    + " avgWait=" + ((mHandled == 0) ? 0 : (mTotalWait / mHandled)) + "ms"
+                    + " maxWait=" + mMaxWait + "ms";
+        }
+    }
+
+    /**
+     * Run work on a lane. The service doesn't stop until the work calls
+     * {@link #endWork(int)}.
+     */
+    private void execute(Lane lane, Runnable work) {
+        synchronized (mWorkLock) {
+            mOutstandingWork++;
+        }
+        lane.execute(work);
+    }
+
+    /**
+     * Called when work run by {@link #execute(Lane, Runnable)} is done.
+     *
+     * @param startId The start id of the request the work was for, or 0.
+     */
+    private void endWork(int startId) {
+        synchronized (mWorkLock) {
+            mOutstandingWork--;
+            mLastStartId = Math.max(mLastStartId, startId);
+            if (mOutstandingWork == 0) {
+                // NOTE: We MUST not call stopSelf() directly, since we need to
+                // make sure the wake lock acquired by AlertReceiver is released.
+                // This doesn't stop the service if it was started again since.
+                SmsReceiver.finishStartingService(this, mLastStartId);
+            }
+        }
+    }
+
+    /**
+     * A received message waiting to be stored.
+     */
+    private static final class ReceivedSms {
+        final Intent mIntent;
+        final int mError;
+        final int mServiceId;
+        // When the service was started with the intent, in uptime.
+        final long mWhen;
+
+        ReceivedSms(Intent intent, int error, int serviceId, long when) {
+            mIntent = intent;
+            mError = error;
+            mServiceId = serviceId;
+            mWhen = when;
+        }
+    }
+
+    /**
+     * How long storing received messages takes, since process start.
+     */
+    private static final class IngestStats {
+        private int mBatches;
+        private int mMessages;
+        private int mMaxBatch;
+        private long mTotalInsertTime;
+        private int mInserted;
+        private long mTotalLatency;
+        private long mMaxLatency;
+
+        synchronized void record(ArrayList<ReceivedSms> batch, int inserted, long insertTime,
+                long now) {
+            mBatches++;
+            mMessages += batch.size();
+            mMaxBatch = Math.max(mMaxBatch, batch.size());
+            mInserted += inserted;
+            mTotalInsertTime += insertTime;
+            for (ReceivedSms received : batch) {
+                long latency = now - received.mWhen;
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "batches=" + mBatches
+                    + " messages=" + mMessages
+                    + " maxBatch=" + mMaxBatch
+                    + " insertPerMsg=" + ((mInserted == 0) ? 0 : (mTotalInsertTime / mInserted))
+                    + "ms avgNotifyLatency="
+                    + ((mMessages == 0) ? 0 : (mTotalLatency / mMessages))
+                    + "ms maxNotifyLatency=" + mMaxLatency + "ms";
+        }
+    }
+
+    private final class ServiceRequest implements Runnable {
+        private final Intent mIntent;
+        private final int mServiceId;
+        private final long mWhen;
+
+        ServiceRequest(Intent intent, int serviceId, long when) {
+            mIntent = intent;
+            mServiceId = serviceId;
+            mWhen = when;
         }
 
         /**
          * Handle incoming transaction requests.
          * The incoming requests are initiated by the MMSC Server or by the MMS Client itself.
          */
-        @Override
-        public void handleMessage(Message msg) {
-            int serviceId = msg.arg1;
-            Intent intent = (Intent)msg.obj;
+        public void run() {
+            Intent intent = mIntent;
             if (intent != null) {
                 String action = intent.getAction();
 
@@ -170,7 +337,13 @@ public class SmsReceiverService extends Service {
                 if (MESSAGE_SENT_ACTION.equals(intent.getAction())) {
                     handleSmsSent(intent, error);
                 } else if (SMS_RECEIVED_ACTION.equals(action)) {
-                    handleSmsReceived(intent, error);
+                    // Stored along with the messages received right after it, by the
+                    // flush queued behind them, which ends the work.
+                    if (mReceived.isEmpty()) {
+                        mReceiveLane.execute(mFlushReceived);
+                    }
+                    mReceived.add(new ReceivedSms(intent, error, mServiceId, mWhen));
+                    return;
                 } else if (ACTION_BOOT_COMPLETED.equals(action)) {
                     handleBootCompleted();
                 } else if (TelephonyIntents.ACTION_SERVICE_STATE_CHANGED.equals(action)) {
@@ -179,70 +352,57 @@ public class SmsReceiverService extends Service {
                     handleSendMessage();
                 }
             }
-            // NOTE: We MUST not call stopSelf() directly, since we need to
-            // make sure the wake lock acquired by AlertReceiver is released.
-            SmsReceiver.finishStartingService(SmsReceiverService.this, serviceId);
+            endWork(mServiceId);
         }
     }
 
+    private final Runnable mFlushReceived = new Runnable() {
+        public void run() {
+            flushReceived();
+        }
+    };
+
     private void handleServiceStateChanged(Intent intent) {
         // If service just returned, start sending out the queued messages
         ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
         if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
-            sendFirstQueuedMessage();
+            sendQueuedMessages();
         }
     }
 
     private void handleSendMessage() {
-        if (!mSending) {
-            sendFirstQueuedMessage();
-        }
+        sendQueuedMessages();
     }
 
-    public synchronized void sendFirstQueuedMessage() {
+    /**
+     * Send queued messages until as many are being sent as the send window
+     * allows.
+     */
+    public synchronized void sendQueuedMessages() {
         boolean success = true;
-        // get all the queued messages from the database
-        final Uri uri = Uri.parse("content://sms/queued");
-        ContentResolver resolver = getContentResolver();
-        Cursor c = SqliteWrapper.query(this, resolver, uri,
-                        SEND_PROJECTION, null, null, "date ASC");   // date ASC so we send out in
-                                                                    // same order the user tried
-                                                                    // to send messages.
-        if (c != null) {
+        SmsSendQueue queue = SmsSendQueue.getInstance(this);
+        queue.sync();
+        for (SmsSendQueue.Entry entry : queue.takeSendable(MmsConfig.getSmsSendWindow())) {
+            Uri msgUri = entry.getUri();
+            SmsMessageSender sender = new SmsSingleRecipientSender(this,
+                    entry.getAddress(), entry.getBody(), entry.getThreadId(),
+                    entry.getRequestDeliveryReport(), msgUri);
+
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "sendQueuedMessages " + msgUri +
+                        ", address: " + entry.getAddress() +
+                        ", threadId: " + entry.getThreadId() +
+                        ", body: " + entry.getBody());
+            }
             try {
-                if (c.moveToFirst()) {
-                    String msgText = c.getString(SEND_COLUMN_BODY);
-                    String address = c.getString(SEND_COLUMN_ADDRESS);
-                    int threadId = c.getInt(SEND_COLUMN_THREAD_ID);
-                    int status = c.getInt(SEND_COLUMN_STATUS);
-
-                    int msgId = c.getInt(SEND_COLUMN_ID);
-                    Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgId);
-
-                    SmsMessageSender sender = new SmsSingleRecipientSender(this,
-                            address, msgText, threadId, status == Sms.STATUS_PENDING,
-                            msgUri);
-
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "sendFirstQueuedMessage " + msgUri +
-                                ", address: " + address +
-                                ", threadId: " + threadId +
-                                ", body: " + msgText);
-                    }
-                    try {
-                        sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);;
-                        mSending = true;
-                    } catch (MmsException e) {
-                        Log.e(TAG, "sendFirstQueuedMessage: failed to send message " + msgUri
-                                + ", caught ", e);
-
-                        mSending = false;
-                        messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
-                        success = false;
-                    }
-                }
-            } finally {
-                c.close();
+                sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);
+            } catch (MmsException e) {
+                Log.e(TAG, "sendQueuedMessages: failed to send message " + msgUri
+                        + ", caught ", e);
+
+                queue.onFinished(msgUri);
+                messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
+                success = false;
             }
         }
         if (success) {
@@ -254,10 +414,12 @@ public class SmsReceiverService extends Service {
 
     private void handleSmsSent(Intent intent, int error) {
         Uri uri = intent.getData();
-        mSending = false;
+        // Several messages are sent at once, so the result goes with the intent.
+        int resultCode = intent.getIntExtra("result", 0);
         boolean sendNextMsg = intent.getBooleanExtra(EXTRA_MESSAGE_SENT_SEND_NEXT, false);
+        SmsSendQueue queue = SmsSendQueue.getInstance(this);
 
-        if (mResultCode == Activity.RESULT_OK) {
+        if (resultCode == Activity.RESULT_OK) {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "handleSmsSent sending uri: " + uri);
             }
@@ -265,13 +427,14 @@ public class SmsReceiverService extends Service {
                 Log.e(TAG, "handleSmsSent: failed to move message " + uri + " to sent folder");
             }
             if (sendNextMsg) {
-                sendFirstQueuedMessage();
+                queue.onFinished(uri);
+                sendQueuedMessages();
             }
 
             // Update the notification for failed messages since they may be deleted.
             MessagingNotification.updateSendFailedNotification(this);
-        } else if ((mResultCode == SmsManager.RESULT_ERROR_RADIO_OFF) ||
-                (mResultCode == SmsManager.RESULT_ERROR_NO_SERVICE)) {
+        } else if ((resultCode == SmsManager.RESULT_ERROR_RADIO_OFF) ||
+                (resultCode == SmsManager.RESULT_ERROR_NO_SERVICE)) {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "handleSmsSent: no service, queuing message w/ uri: " + uri);
             }
@@ -281,6 +444,7 @@ public class SmsReceiverService extends Service {
             registerForServiceStateChanges();
             // We couldn't send the message, put in the queue to retry later.
             Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_QUEUED, error);
+            queue.requeue(uri);
             mToastHandler.post(new Runnable() {
                 public void run() {
                     Toast.makeText(SmsReceiverService.this, getString(R.string.message_queued),
@@ -290,7 +454,8 @@ public class SmsReceiverService extends Service {
         } else {
             messageFailedToSend(uri, error);
             if (sendNextMsg) {
-                sendFirstQueuedMessage();
+                queue.onFinished(uri);
+                sendQueuedMessages();
             }
         }
     }
@@ -303,30 +468,142 @@ public class SmsReceiverService extends Service {
         MessagingNotification.notifySendFailed(getApplicationContext(), true);
     }
 
-    private void handleSmsReceived(Intent intent, int error) {
-        SmsMessage[] msgs = Intents.getMessagesFromIntent(intent);
-        Uri messageUri = insertMessage(this, msgs, error);
+    private void flushReceived() {
+        int count = Math.min(mReceived.size(), MAX_RECEIVED_BATCH);
+        ArrayList<ReceivedSms> batch = new ArrayList<ReceivedSms>(mReceived.subList(0, count));
+        mReceived.subList(0, count).clear();
+        if (!mReceived.isEmpty()) {
+            mReceiveLane.execute(mFlushReceived);
+        }
+        try {
+            handleSmsReceived(batch);
+        } finally {
+            for (ReceivedSms received : batch) {
+                endWork(received.mServiceId);
+            }
+        }
+    }
 
-        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+    /**
+     * Store a batch of received messages with one insert, update the
+     * notification once, and have their threads recycled on the
+     * maintenance lane.
+     */
+    private void handleSmsReceived(ArrayList<ReceivedSms> batch) {
+        ArrayList<ContentValues> pending = new ArrayList<ContentValues>(batch.size());
+        // Thread ids of the senders in this batch, which mostly share a few senders.
+        HashMap<String, Long> threadIds = new HashMap<String, Long>();
+        // The number of messages stored in every thread.
+        LinkedHashMap<Long, Integer> threads = new LinkedHashMap<Long, Integer>();
+        boolean stored = false;
+        int inserted = 0;
+        long insertTime = 0;
+
+        for (ReceivedSms received : batch) {
+            SmsMessage[] msgs = Intents.getMessagesFromIntent(received.mIntent);
             SmsMessage sms = msgs[0];
-            Log.v(TAG, "handleSmsReceived" + (sms.isReplace() ? "(replace)" : "") +
-                    " messageUri: " + messageUri +
-                    ", address: " + sms.getOriginatingAddress() +
-                    ", body: " + sms.getMessageBody());
+
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "handleSmsReceived" + (sms.isReplace() ? "(replace)" : "") +
+                        ", address: " + sms.getOriginatingAddress() +
+                        ", body: " + sms.getMessageBody());
+            }
+
+            if (sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0) {
+                displayClassZeroMessage(this, sms);
+            } else if (sms.isReplace()) {
+                // It may replace one of the messages before it.
+                long start = SystemClock.uptimeMillis();
+                inserted += insertMessages(pending);
+                insertTime += SystemClock.uptimeMillis() - start;
+                pending.clear();
+                stored |= (replaceMessage(this, msgs, received.mError) != null);
+            } else {
+                ContentValues values = getMessageValues(msgs, received.mError, threadIds);
+                pending.add(values);
+                Long threadId = values.getAsLong(Sms.THREAD_ID);
+                if (threadId != null) {
+                    Integer added = threads.get(threadId);
+                    threads.put(threadId, (added == null) ? 1 : (added + 1));
+                }
+            }
+        }
+
+        long start = SystemClock.uptimeMillis();
+        int count = insertMessages(pending);
+        insertTime += SystemClock.uptimeMillis() - start;
+        inserted += count;
+        stored |= (count > 0);
+
+        for (long threadId : threads.keySet()) {
+            SmsMessageSender.invalidateServiceCenter(threadId);
         }
 
-        if (messageUri != null) {
+        if (stored) {
             // Called off of the UI thread so ok to block.
             MessagingNotification.blockingUpdateNewMessageIndicator(this, true, false);
         }
+
+        if (!threads.isEmpty()) {
+            recycleThreads(threads);
+        }
+
+        sIngestStats.record(batch, inserted, insertTime, SystemClock.uptimeMillis());
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "handleSmsReceived: stored " + inserted + " of " + batch.size()
+                    + " messages in " + insertTime + "ms");
+        }
+    }
+
+    /**
+     * Make sure the threads are not over the limit in stored messages.
+     *
+     * @param threads The number of messages just stored by thread.
+     */
+    private void recycleThreads(final Map<Long, Integer> threads) {
+        execute(mMaintenanceLane, new Runnable() {
+            public void run() {
+                try {
+                    for (Map.Entry<Long, Integer> thread : threads.entrySet()) {
+                        Recycler.getSmsRecycler().deleteOldMessagesByThreadId(
+                                getApplicationContext(), thread.getKey(), thread.getValue());
+                    }
+                } finally {
+                    endWork(0);
+                }
+            }
+        });
+    }
+
+    private int insertMessages(ArrayList<ContentValues> messages) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        try {
+            return getContentResolver().bulkInsert(Inbox.CONTENT_URI,
+                    messages.toArray(new ContentValues[messages.size()]));
+        } catch (SQLiteException e) {
+            SqliteWrapper.checkSQLiteException(this, e);
+            return 0;
+        }
     }
 
     private void handleBootCompleted() {
         moveOutboxMessagesToQueuedBox();
-        sendFirstQueuedMessage();
-
-        // Called off of the UI thread so ok to block.
-        MessagingNotification.blockingUpdateNewMessageIndicator(this, true, false);
+        SmsSendQueue.getInstance(this).reset();
+        sendQueuedMessages();
+
+        execute(mMaintenanceLane, new Runnable() {
+            public void run() {
+                try {
+                    // Called off of the UI thread so ok to block.
+                    MessagingNotification.blockingUpdateNewMessageIndicator(
+                            SmsReceiverService.this, true, false);
+                } finally {
+                    endWork(0);
+                }
+            }
+        });
     }
 
     private void moveOutboxMessagesToQueuedBox() {
@@ -351,27 +628,6 @@ public class SmsReceiverService extends Service {
     // This must match REPLACE_PROJECTION.
     private static final int REPLACE_COLUMN_ID = 0;
 
-    /**
-     * If the message is a class-zero message, display it immediately
-     * and return null.  Otherwise, store it using the
-     * <code>ContentResolver</code> and return the
-     * <code>Uri</code> of the thread containing this message
-     * so that we can use it for notification.
-     */
-    private Uri insertMessage(Context context, SmsMessage[] msgs, int error) {
-        // Build the helper classes to parse the messages.
-        SmsMessage sms = msgs[0];
-
-        if (sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0) {
-            displayClassZeroMessage(context, sms);
-            return null;
-        } else if (sms.isReplace()) {
-            return replaceMessage(context, msgs, error);
-        } else {
-            return storeMessage(context, msgs, error);
-        }
-    }
-
     /**
      * This method is used if this is a "replace short message" SMS.
      * We find any existing message that matches the incoming
@@ -410,6 +666,7 @@ public class SmsReceiverService extends Service {
 
                     SqliteWrapper.update(context, resolver, messageUri,
                                         values, null, null);
+                    SmsMessageSender.invalidateServiceCenters();
                     return messageUri;
                 }
             } finally {
@@ -420,9 +677,32 @@ public class SmsReceiverService extends Service {
     }
 
     private Uri storeMessage(Context context, SmsMessage[] msgs, int error) {
+        // Store the message in the content provider.
+        ContentValues values = getMessageValues(msgs, error, null);
+        Long threadId = values.getAsLong(Sms.THREAD_ID);
+
+        ContentResolver resolver = context.getContentResolver();
+
+        Uri insertedUri = SqliteWrapper.insert(context, resolver, Inbox.CONTENT_URI, values);
+        if (threadId != null) {
+            SmsMessageSender.invalidateServiceCenter(threadId);
+
+            recycleThreads(Collections.singletonMap(threadId, 1));
+        }
+
+        return insertedUri;
+    }
+
+    /**
+     * Returns the values to store a received message with.
+     *
+     * @param threadIds The thread ids already looked up by originating
+     *        address, to use and add to, or null.
+     */
+    private ContentValues getMessageValues(SmsMessage[] msgs, int error,
+            HashMap<String, Long> threadIds) {
         SmsMessage sms = msgs[0];
 
-        // Store the message in the content provider.
         ContentValues values = extractContentValues(sms);
         values.put(Sms.ERROR_CODE, error);
         int pduCount = msgs.length;
@@ -444,29 +724,32 @@ public class SmsReceiverService extends Service {
         // excess messages.
         Long threadId = values.getAsLong(Sms.THREAD_ID);
         String address = values.getAsString(Sms.ADDRESS);
-        if (!TextUtils.isEmpty(address)) {
-            Contact cacheContact = Contact.get(address,true);
-            if (cacheContact != null) {
-                address = cacheContact.getNumber();
-            }
-        } else {
+        boolean knownAddress = !TextUtils.isEmpty(address);
+        if (!knownAddress) {
             address = new String("Unknown");
             values.put(Sms.ADDRESS, address);
         }
-
-        if (((threadId == null) || (threadId == 0)) && (address != null)) {
-            threadId = Threads.getOrCreateThreadId(context, address);
+        if ((threadId == null) || (threadId == 0)) {
+            threadId = (threadIds != null) ? threadIds.get(address) : null;
+            if (threadId == null) {
+                threadId = getOrCreateThreadId(address, knownAddress);
+                if (threadIds != null) {
+                    threadIds.put(address, threadId);
+                }
+            }
             values.put(Sms.THREAD_ID, threadId);
         }
+        return values;
+    }
 
-        ContentResolver resolver = context.getContentResolver();
-
-        Uri insertedUri = SqliteWrapper.insert(context, resolver, Inbox.CONTENT_URI, values);
-
-        // Now make sure we're not over the limit in stored messages
-        Recycler.getSmsRecycler().deleteOldMessagesByThreadId(getApplicationContext(), threadId);
-
-        return insertedUri;
+    private long getOrCreateThreadId(String address, boolean knownAddress) {
+        if (knownAddress) {
+            Contact cacheContact = Contact.get(address, true);
+            if (cacheContact != null) {
+                address = cacheContact.getNumber();
+            }
+        }
+        return Threads.getOrCreateThreadId(this, address);
     }
 
     /**
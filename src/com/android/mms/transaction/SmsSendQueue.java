@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+import android.database.sqlite.SqliteWrapper;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * The messages of the SMS queued box, kept in memory in the order they are
+ * to be sent, so that SmsReceiverService doesn't have to query the whole box
+ * for every message it sends.
+ *
+ * While messages are waiting, only rows inserted since the last read, which
+ * have higher ids, are read from the box. Several messages are sent at the same time, up to a
+ * window, but never two to the same recipient of the same conversation, so
+ * those still go out in the order they were written.
+ */
+public class SmsSendQueue {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final Uri QUEUED_URI = Uri.parse("content://sms/queued");
+
+    // This must match the column IDs below.
+    private static final String[] SEND_PROJECTION = new String[] {
+        Sms._ID,        //0
+        Sms.THREAD_ID,  //1
+        Sms.ADDRESS,    //2
+        Sms.BODY,       //3
+        Sms.STATUS,     //4
+        Sms.DATE,       //5
+    };
+
+    private static final String[] ID_PROJECTION = new String[] { Sms._ID };
+
+    // This must match SEND_PROJECTION.
+    private static final int SEND_COLUMN_ID         = 0;
+    private static final int SEND_COLUMN_THREAD_ID  = 1;
+    private static final int SEND_COLUMN_ADDRESS    = 2;
+    private static final int SEND_COLUMN_BODY       = 3;
+    private static final int SEND_COLUMN_STATUS     = 4;
+    private static final int SEND_COLUMN_DATE       = 5;
+
+    private static SmsSendQueue sInstance;
+
+    private final Context mContext;
+
+    // Waiting messages by date, and the ones being sent.
+    private final LinkedList<Entry> mQueue = new LinkedList<Entry>();
+    private final HashMap<Uri, Entry> mInFlight = new HashMap<Uri, Entry>();
+    // Every message in mQueue or mInFlight.
+    private final HashSet<Uri> mKnown = new HashSet<Uri>();
+    // The recipients of mInFlight.
+    private final HashSet<String> mBusyRecipients = new HashSet<String>();
+
+    private boolean mLoaded;
+    private long mLastId;
+
+    // Statistics of the current burst and since process start.
+    private long mBurstStart;
+    private int mBurstSent;
+    private int mStarted;
+    private int mSent;
+    private long mTotalWait;
+    private long mMaxWait;
+    private long mTotalSendTime;
+
+    /**
+     * A queued message.
+     */
+    public static class Entry {
+        final Uri mUri;
+        final long mThreadId;
+        final String mAddress;
+        final String mBody;
+        final boolean mRequestDeliveryReport;
+        final long mDate;
+        final long mQueuedAt;
+        long mSentAt;
+
+        Entry(Uri uri, long threadId, String address, String body,
+                boolean requestDeliveryReport, long date) {
+            mUri = uri;
+            mThreadId = threadId;
+            mAddress = address;
+            mBody = body;
+            mRequestDeliveryReport = requestDeliveryReport;
+            mDate = date;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        String getRecipientKey() {
+            return mThreadId + ":" + mAddress;
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        public long getThreadId() {
+            return mThreadId;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+
+        public boolean getRequestDeliveryReport() {
+            return mRequestDeliveryReport;
+        }
+    }
+
+    SmsSendQueue(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SmsSendQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SmsSendQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Read the messages put into the queued box since the last call. The
+     * whole box is read the first time, and whenever the queue has drained,
+     * since the id of a deleted last row can be given out again.
+     */
+    public synchronized void sync() {
+        boolean incremental = mLoaded && !(mQueue.isEmpty() && mInFlight.isEmpty());
+        String selection = incremental ? Sms._ID + ">?" : null;
+        String[] selectionArgs = incremental ? new String[] { Long.toString(mLastId) } : null;
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(), QUEUED_URI,
+                SEND_PROJECTION, selection, selectionArgs, "date ASC");
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(SEND_COLUMN_ID);
+                mLastId = Math.max(mLastId, id);
+                add(new Entry(ContentUris.withAppendedId(Sms.CONTENT_URI, id),
+                        c.getLong(SEND_COLUMN_THREAD_ID),
+                        c.getString(SEND_COLUMN_ADDRESS),
+                        c.getString(SEND_COLUMN_BODY),
+                        c.getInt(SEND_COLUMN_STATUS) == Sms.STATUS_PENDING,
+                        c.getLong(SEND_COLUMN_DATE)));
+            }
+            mLoaded = true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Forget everything, so that the next {@link #sync()} reads the whole
+     * queued box again. For when messages were moved into it in bulk.
+     */
+    public synchronized void reset() {
+        mQueue.clear();
+        mInFlight.clear();
+        mKnown.clear();
+        mBusyRecipients.clear();
+        mLoaded = false;
+        mLastId = 0;
+    }
+
+    /**
+     * Add a message, after those of the same date or older.
+     */
+    synchronized void add(Entry entry) {
+        if (!mKnown.add(entry.mUri)) {
+            return;
+        }
+        ListIterator<Entry> it = mQueue.listIterator(mQueue.size());
+        while (it.hasPrevious()) {
+            if (it.previous().mDate <= entry.mDate) {
+                it.next();
+                break;
+            }
+        }
+        it.add(entry);
+    }
+
+    /**
+     * Returns the messages that can be sent now, oldest first, and counts
+     * them as being sent. They are the oldest message of every recipient
+     * that has none being sent, as long as fewer than {@code window}
+     * messages are being sent. Messages no longer in the queued box, say
+     * deleted by the user meanwhile, are dropped.
+     */
+    public synchronized List<Entry> takeSendable(int window) {
+        ArrayList<Entry> sendable = new ArrayList<Entry>();
+        while (true) {
+            ArrayList<Entry> candidates = new ArrayList<Entry>();
+            HashSet<String> recipients = new HashSet<String>(mBusyRecipients);
+            for (Entry entry : sendable) {
+                recipients.add(entry.getRecipientKey());
+            }
+            int free = window - mInFlight.size() - sendable.size();
+            for (Entry entry : mQueue) {
+                if (candidates.size() >= free) {
+                    break;
+                }
+                if (recipients.add(entry.getRecipientKey())) {
+                    candidates.add(entry);
+                }
+            }
+            if (candidates.isEmpty()) {
+                break;
+            }
+
+            HashSet<Uri> queued = getStillQueued(candidates);
+            boolean dropped = false;
+            for (Entry entry : candidates) {
+                mQueue.remove(entry);
+                if ((queued == null) || queued.contains(entry.mUri)) {
+                    sendable.add(entry);
+                } else {
+                    mKnown.remove(entry.mUri);
+                    dropped = true;
+                }
+            }
+            if (!dropped) {
+                break;
+            }
+            // Their recipients may have other messages waiting.
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : sendable) {
+            entry.mSentAt = now;
+            mInFlight.put(entry.mUri, entry);
+            mBusyRecipients.add(entry.getRecipientKey());
+
+            long wait = now - entry.mQueuedAt;
+            mStarted++;
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            if (mBurstStart == 0) {
+                mBurstStart = now;
+                mBurstSent = 0;
+            }
+        }
+        return sendable;
+    }
+
+    /**
+     * Returns which of the given messages are still in the queued box, or
+     * null if that can't be told.
+     */
+    HashSet<Uri> getStillQueued(List<Entry> entries) {
+        HashSet<Uri> queued = new HashSet<Uri>();
+        StringBuilder ids = new StringBuilder();
+        for (Entry entry : entries) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(ContentUris.parseId(entry.mUri));
+        }
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(), QUEUED_URI,
+                ID_PROJECTION, Sms._ID + " IN (" + ids + ")", null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            while (c.moveToNext()) {
+                queued.add(ContentUris.withAppendedId(Sms.CONTENT_URI, c.getLong(0)));
+            }
+        } finally {
+            c.close();
+        }
+        return queued;
+    }
+
+    /**
+     * A message was sent, or failed for good.
+     */
+    public synchronized void onFinished(Uri uri) {
+        mKnown.remove(uri);
+        Entry entry = removeInFlight(uri);
+        if (entry == null) {
+            // Requeued after one part failed, and then its last part went out.
+            Iterator<Entry> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().mUri.equals(uri)) {
+                    it.remove();
+                    break;
+                }
+            }
+            return;
+        }
+        mSent++;
+        mBurstSent++;
+        mTotalSendTime += SystemClock.elapsedRealtime() - entry.mSentAt;
+        if (mInFlight.isEmpty() && mQueue.isEmpty()) {
+            onBurstEnded();
+        }
+    }
+
+    /**
+     * A message couldn't be sent for now; it goes back into the queue.
+     */
+    public synchronized void requeue(Uri uri) {
+        Entry entry = removeInFlight(uri);
+        if (entry != null) {
+            mKnown.remove(uri);
+            add(entry);
+        }
+    }
+
+    private Entry removeInFlight(Uri uri) {
+        Entry entry = mInFlight.remove(uri);
+        if (entry != null) {
+            mBusyRecipients.remove(entry.getRecipientKey());
+        }
+        return entry;
+    }
+
+    private void onBurstEnded() {
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            long elapsed = SystemClock.elapsedRealtime() - mBurstStart;
+            Log.v(TAG, "[SmsSendQueue] sent " + mBurstSent + " messages in " + elapsed + "ms");
+        }
+        mBurstStart = 0;
+    }
+
+    public synchronized String getStats() {
+        String stats = "queued=" + mQueue.size()
+                + " inFlight=" + mInFlight.size()
+                + " sent=" + mSent
+                + " avgWait=" + ((mStarted == 0) ? 0 : (mTotalWait / mStarted)) + "ms"
+                + " maxWait=" + mMaxWait + "ms"
+                + " avgSend=" + ((mSent == 0) ? 0 : (mTotalSendTime / mSent)) + "ms";
+        if (mBurstStart != 0) {
+            long elapsed = SystemClock.elapsedRealtime() - mBurstStart;
+            stats += " burst: sent " + mBurstSent + " in " + elapsed + "ms";
+        }
+        return stats;
+    }
+
+    public void dump() {
+        Log.d(TAG, "**** SmsSendQueue dump ****");
+        Log.d(TAG, getStats());
+    }
+}
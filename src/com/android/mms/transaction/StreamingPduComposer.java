@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Composes an M-Send.req whose part data is streamed from the parts' data
+ * URIs while the request is written, instead of being copied into one array
+ * the size of the whole message first.
+ *
+ * The message headers are still encoded by {@link PduComposer}, from a copy
+ * of the request with an empty body. The multipart body is encoded here the
+ * same way PduComposer encodes it, except that only the small part headers
+ * are held in memory.
+ */
+public class StreamingPduComposer implements ProgressCallbackEntity.Content {
+    private static final String TAG = "StreamingPduComposer";
+
+    // WSP encoding constants, see WAP-230-WSP.
+    private static final int SHORT_LENGTH_MAX = 30;
+    private static final int LENGTH_QUOTE = 31;
+    private static final int TEXT_MAX = 127;
+    private static final int QUOTED_STRING_FLAG = 34;
+    private static final int SHORT_INTEGER_MASK = 0x80;
+
+    // The well-known content types of WAP-230-WSP, indexed by their short
+    // integer value. This is the table PduComposer encodes part content types
+    // with (PduContentTypes.contentTypes, which isn't visible outside its
+    // package), so both composers produce the same bytes.
+    private static final String[] WELL_KNOWN_TYPES = {
+        "*/*",                                          /* 0x00 */
+        "text/*",                                       /* 0x01 */
+        "text/html",                                    /* 0x02 */
+        "text/plain",                                   /* 0x03 */
+        "text/x-hdml",                                  /* 0x04 */
+        "text/x-ttml",                                  /* 0x05 */
+        "text/x-vCalendar",                             /* 0x06 */
+        "text/x-vCard",                                 /* 0x07 */
+        "text/vnd.wap.wml",                             /* 0x08 */
+        "text/vnd.wap.wmlscript",                       /* 0x09 */
+        "text/vnd.wap.wta-event",                       /* 0x0A */
+        "multipart/*",                                  /* 0x0B */
+        "multipart/mixed",                              /* 0x0C */
+        "multipart/form-data",                          /* 0x0D */
+        "multipart/byterantes",                         /* 0x0E */
+        "multipart/alternative",                        /* 0x0F */
+        "application/*",                                /* 0x10 */
+        "application/java-vm",                          /* 0x11 */
+        "application/x-www-form-urlencoded",            /* 0x12 */
+        "application/x-hdmlc",                          /* 0x13 */
+        "application/vnd.wap.wmlc",                     /* 0x14 */
+        "application/vnd.wap.wmlscriptc",               /* 0x15 */
+        "application/vnd.wap.wta-eventc",               /* 0x16 */
+        "application/vnd.wap.uaprof",                   /* 0x17 */
+        "application/vnd.wap.wtls-ca-certificate",      /* 0x18 */
+        "application/vnd.wap.wtls-user-certificate",    /* 0x19 */
+        "application/x-x509-ca-cert",                   /* 0x1A */
+        "application/x-x509-user-cert",                 /* 0x1B */
+        "image/*",                                      /* 0x1C */
+        "image/gif",                                    /* 0x1D */
+        "image/jpeg",                                   /* 0x1E */
+        "image/tiff",                                   /* 0x1F */
+        "image/png",                                    /* 0x20 */
+        "image/vnd.wap.wbmp",                           /* 0x21 */
+        "application/vnd.wap.multipart.*",              /* 0x22 */
+        "application/vnd.wap.multipart.mixed",          /* 0x23 */
+        "application/vnd.wap.multipart.form-data",      /* 0x24 */
+        "application/vnd.wap.multipart.byteranges",     /* 0x25 */
+        "application/vnd.wap.multipart.alternative",    /* 0x26 */
+        "application/xml",                              /* 0x27 */
+        "text/xml",                                     /* 0x28 */
+        "application/vnd.wap.wbxml",                    /* 0x29 */
+        "application/x-x968-cross-cert",                /* 0x2A */
+        "application/x-x968-ca-cert",                   /* 0x2B */
+        "application/x-x968-user-cert",                 /* 0x2C */
+        "text/vnd.wap.si",                              /* 0x2D */
+        "application/vnd.wap.sic",                      /* 0x2E */
+        "text/vnd.wap.sl",                              /* 0x2F */
+        "application/vnd.wap.slc",                      /* 0x30 */
+        "text/vnd.wap.co",                              /* 0x31 */
+        "application/vnd.wap.coc",                      /* 0x32 */
+        "application/vnd.wap.multipart.related",        /* 0x33 */
+        "application/vnd.wap.sia",                      /* 0x34 */
+        "text/vnd.wap.connectivity-xml",                /* 0x35 */
+        "application/vnd.wap.connectivity-wbxml",       /* 0x36 */
+        "application/pkcs7-mime",                       /* 0x37 */
+        "application/vnd.wap.hashed-certificate",       /* 0x38 */
+        "application/vnd.wap.signed-certificate",       /* 0x39 */
+        "application/vnd.wap.cert-response",            /* 0x3A */
+        "application/xhtml+xml",                        /* 0x3B */
+        "application/wml+xml",                          /* 0x3C */
+        "text/css",                                     /* 0x3D */
+        "application/vnd.wap.mms-message",              /* 0x3E */
+        "application/vnd.wap.rollover-certificate",     /* 0x3F */
+        "application/vnd.wap.locc+wbxml",               /* 0x40 */
+        "application/vnd.wap.loc+xml",                  /* 0x41 */
+        "application/vnd.syncml.dm+wbxml",              /* 0x42 */
+        "application/vnd.syncml.dm+xml",                /* 0x43 */
+        "application/vnd.syncml.notification",          /* 0x44 */
+        "application/vnd.wap.xhtml+xml",                /* 0x45 */
+        "application/vnd.wv.csp.cir",                   /* 0x46 */
+        "application/vnd.oma.dd+xml",                   /* 0x47 */
+        "application/vnd.oma.drm.message",              /* 0x48 */
+        "application/vnd.oma.drm.content",              /* 0x49 */
+        "application/vnd.oma.drm.rights+xml",           /* 0x4A */
+        "application/vnd.oma.drm.rights+wbxml",         /* 0x4B */
+    };
+
+    private static final HashMap<String, Integer> sWellKnownTypeMap =
+            new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < WELL_KNOWN_TYPES.length; i++) {
+            sWellKnownTypeMap.put(WELL_KNOWN_TYPES[i], i);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final ArrayList<Object> mSegments = new ArrayList<Object>();
+    private long mLength;
+
+    /**
+     * The data of a part that is streamed from its URI.
+     */
+    private static class UriSegment {
+        final Uri mUri;
+        final long mLength;
+
+        UriSegment(Uri uri, long length) {
+            mUri = uri;
+            mLength = length;
+        }
+    }
+
+    private StreamingPduComposer(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Compose a send request for streaming.
+     *
+     * @return the composed PDU, or null if it cannot be streamed, in which
+     *         case the caller should fall back to {@link PduComposer#make()}.
+     */
+    public static StreamingPduComposer compose(Context context, SendReq sendReq) {
+        PduBody body = sendReq.getBody();
+        if ((body == null) || (body.getPartsNum() == 0)) {
+            return null;
+        }
+
+        StreamingPduComposer composer = new StreamingPduComposer(context);
+        try {
+            if (composer.composeHeaders(context, sendReq) && composer.composeBody(body)) {
+                return composer;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot stream M-Send.req: " + e.getMessage());
+        }
+        return null;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        WritableByteChannel channel = null;
+        for (Object segment : mSegments) {
+            if (segment instanceof byte[]) {
+                outstream.write((byte[]) segment);
+            } else {
+                if (channel == null) {
+                    channel = Channels.newChannel(outstream);
+                }
+                transfer((UriSegment) segment, channel);
+            }
+        }
+    }
+
+    private void transfer(UriSegment segment, WritableByteChannel channel)
+            throws IOException {
+        ParcelFileDescriptor pfd = mResolver.openFileDescriptor(segment.mUri, "r");
+        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            FileChannel source = in.getChannel();
+            long position = 0;
+            while (position < segment.mLength) {
+                long count = source.transferTo(position, segment.mLength - position, channel);
+                if (count <= 0) {
+                    throw new IOException("Part " + segment.mUri + " shrank while sending");
+                }
+                position += count;
+            }
+        } finally {
+            in.close();
+            pfd.close();
+        }
+    }
+
+    private void add(byte[] segment) {
+        mSegments.add(segment);
+        mLength += segment.length;
+    }
+
+    private boolean composeHeaders(Context context, SendReq sendReq) {
+        // Let PduComposer encode every header of an otherwise empty message,
+        // which ends in Content-Type, the type as a short integer, and a
+        // zero part count. Everything after the Content-Type is ours to write.
+        PduBody body = sendReq.getBody();
+        byte[] headers;
+        try {
+            sendReq.setBody(new PduBody());
+            headers = new PduComposer(context, sendReq).make();
+        } finally {
+            sendReq.setBody(body);
+        }
+
+        int length = (headers == null) ? 0 : headers.length;
+        if ((length < 3) || ((headers[length - 3] & 0xFF) != PduHeaders.CONTENT_TYPE)
+                || ((headers[length - 2] & SHORT_INTEGER_MASK) == 0)
+                || (headers[length - 1] != 0)) {
+            Log.w(TAG, "Unexpected encoding of an empty M-Send.req");
+            return false;
+        }
+
+        byte[] prefix = new byte[length - 2];
+        System.arraycopy(headers, 0, prefix, 0, prefix.length);
+        add(prefix);
+
+        ByteArrayOutputStream contentType = new ByteArrayOutputStream();
+        contentType.write(headers[length - 2]);
+
+        PduPart first = body.getPart(0);
+        byte[] start = first.getContentId();
+        if (start != null) {
+            contentType.write(PduPart.P_DEP_START);
+            if (('<' == start[0]) && ('>' == start[start.length - 1])) {
+                appendTextString(contentType, start);
+            } else {
+                appendTextString(contentType, ("<" + new String(start) + ">").getBytes());
+            }
+        }
+        contentType.write(PduPart.P_CT_MR_TYPE);
+        appendTextString(contentType, first.getContentType());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        appendValueLength(out, contentType.size());
+        out.write(contentType.toByteArray(), 0, contentType.size());
+        appendUintvarInteger(out, body.getPartsNum());
+        add(out.toByteArray());
+        return true;
+    }
+
+    private boolean composeBody(PduBody body) throws IOException {
+        int partNum = body.getPartsNum();
+        for (int i = 0; i < partNum; i++) {
+            PduPart part = body.getPart(i);
+
+            byte[] partContentType = part.getContentType();
+            if (partContentType == null) {
+                return false;
+            }
+            byte[] name = part.getName();
+            if (name == null) {
+                name = part.getFilename();
+                if (name == null) {
+                    name = part.getContentLocation();
+                    if (name == null) {
+                        return false;
+                    }
+                }
+            }
+
+            // Content-Type with its name and charset parameters.
+            ByteArrayOutputStream contentType = new ByteArrayOutputStream();
+            int wellKnown = getWellKnownType(new String(partContentType));
+            if (wellKnown < 0) {
+                appendTextString(contentType, partContentType);
+            } else {
+                contentType.write(wellKnown | SHORT_INTEGER_MASK);
+            }
+            contentType.write(PduPart.P_DEP_NAME);
+            appendTextString(contentType, name);
+            int charset = part.getCharset();
+            if (charset != 0) {
+                contentType.write(PduPart.P_CHARSET);
+                contentType.write(charset | SHORT_INTEGER_MASK);
+            }
+
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            appendValueLength(headers, contentType.size());
+            headers.write(contentType.toByteArray(), 0, contentType.size());
+
+            byte[] contentId = part.getContentId();
+            if (contentId != null) {
+                headers.write(PduPart.P_CONTENT_ID);
+                if (('<' == contentId[0]) && ('>' == contentId[contentId.length - 1])) {
+                    appendQuotedString(headers, contentId);
+                } else {
+                    appendQuotedString(headers, ("<" + new String(contentId) + ">").getBytes());
+                }
+            }
+            byte[] contentLocation = part.getContentLocation();
+            if (contentLocation != null) {
+                headers.write(PduPart.P_CONTENT_LOCATION);
+                appendTextString(headers, contentLocation);
+            }
+
+            byte[] data = part.getData();
+            long dataLength = (data != null) ? data.length : getDataLength(part.getDataUri());
+            if (dataLength < 0) {
+                return false;
+            }
+
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            appendUintvarInteger(entry, headers.size());
+            appendUintvarInteger(entry, dataLength);
+            entry.write(headers.toByteArray(), 0, headers.size());
+            add(entry.toByteArray());
+
+            if (data != null) {
+                add(data);
+            } else {
+                mSegments.add(new UriSegment(part.getDataUri(), dataLength));
+                mLength += dataLength;
+            }
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "Composed M-Send.req of " + mLength + " bytes in "
+                    + mSegments.size() + " segments");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size of the file behind a data URI, or -1 if the URI does
+     * not refer to a plain file and so cannot be streamed.
+     */
+    private long getDataLength(Uri uri) throws IOException {
+        if (uri == null) {
+            return -1;
+        }
+        ParcelFileDescriptor pfd = mResolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            return -1;
+        }
+        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            return in.getChannel().size();
+        } finally {
+            in.close();
+            pfd.close();
+        }
+    }
+
+    private static int getWellKnownType(String contentType) {
+        Integer value = sWellKnownTypeMap.get(contentType);
+        return (value != null) ? value : -1;
+    }
+
+    private static void appendTextString(ByteArrayOutputStream out, byte[] text) {
+        if ((text.length > 0) && ((text[0] & 0xFF) > TEXT_MAX)) {
+            out.write(TEXT_MAX);
+        }
+        out.write(text, 0, text.length);
+        out.write(0);
+    }
+
+    private static void appendQuotedString(ByteArrayOutputStream out, byte[] text) {
+        out.write(QUOTED_STRING_FLAG);
+        out.write(text, 0, text.length);
+        out.write(0);
+    }
+
+    private static void appendValueLength(ByteArrayOutputStream out, long value) {
+        if (value <= SHORT_LENGTH_MAX) {
+            out.write((int) value);
+        } else {
+            out.write(LENGTH_QUOTE);
+            appendUintvarInteger(out, value);
+        }
+    }
+
+    private static void appendUintvarInteger(ByteArrayOutputStream out, long value) {
+        // Seven bits per octet, most significant first, with the top bit of
+        // every octet but the last one set.
+        int shift = 0;
+        while ((value >>> (shift + 7)) != 0) {
+            shift += 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write((int) (((value >>> shift) & 0x7F) | 0x80));
+        }
+        out.write((int) (value & 0x7F));
+    }
+}
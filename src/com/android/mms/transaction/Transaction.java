@@ -17,6 +17,7 @@
 
 package com.android.mms.transaction;
 
+import com.android.mms.LogTag;
 import com.android.mms.util.SendingProgressTokenManager;
 
 import android.content.Context;
@@ -40,6 +41,7 @@ public abstract class Transaction extends Observable {
     protected String mId;
     protected TransactionState mTransactionState;
     protected TransactionSettings mTransactionSettings;
+    private Throwable mFailureCause;
 
     /**
      * Identifies push requests.
@@ -57,6 +59,10 @@ public abstract class Transaction extends Observable {
      * Identifies send read report requests.
      */
     public static final int READREC_TRANSACTION      = 3;
+    /**
+     * Identifies the transaction sending queued acknowledgements.
+     */
+    public static final int ACK_TRANSACTION          = 4;
 
     public Transaction(Context context, int serviceId,
             TransactionSettings settings) {
@@ -76,12 +82,38 @@ public abstract class Transaction extends Observable {
         return mTransactionState;
     }
 
+    /**
+     * Remember what made this transaction fail, so that RetryScheduler can
+     * decide whether and when to try again.
+     */
+    protected void setFailureCause(Throwable cause) {
+        mFailureCause = cause;
+    }
+
+    /**
+     * Returns what made this transaction fail, or null if it didn't or the
+     * reason is unknown.
+     */
+    public Throwable getFailureCause() {
+        return mFailureCause;
+    }
+
     /**
      * An instance of Transaction encapsulates the actions required
-     * during a MMS Client transaction.
+     * during a MMS Client transaction. It is called on one of the
+     * TransactionService worker threads and runs the whole transaction
+     * before returning.
      */
     public abstract void process();
 
+    /**
+     * Returns how many bytes this transaction is expected to download, or 0
+     * if it doesn't download a message or the size isn't known.
+     */
+    public long getExpectedSize() {
+        return 0;
+    }
+
     /**
      * Used to determine whether a transaction is equivalent to this instance.
      *
@@ -89,8 +121,16 @@ public abstract class Transaction extends Observable {
      * @return true if transaction is equivalent to this instance, false otherwise.
      */
     public boolean isEquivalent(Transaction transaction) {
-        return getClass().equals(transaction.getClass())
-                && mId.equals(transaction.mId);
+        return getIdentity().equals(transaction.getIdentity());
+    }
+
+    /**
+     * Returns a key that is equal for two transactions exactly when they
+     * are equivalent, made of the transaction type and its id (content
+     * location, transaction id or message URI depending on the type).
+     */
+    public String getIdentity() {
+        return getType() + ":" + mId;
     }
 
     /**
@@ -162,19 +202,68 @@ public abstract class Transaction extends Observable {
      *         an HTTP error code(>=400) returned from the server.
      */
     protected byte[] sendPdu(long token, byte[] pdu, String mmscUrl) throws IOException {
+        return sendPdu(token, new ProgressCallbackEntity.ByteArrayContent(pdu), mmscUrl);
+    }
+
+    /**
+     * A common method to send a PDU to MMSC, writing it out while the request
+     * is sent instead of composing it into an array first.
+     *
+     * @param token The token to identify the sending progress.
+     * @param pdu The content of the PDU.
+     * @param mmscUrl Url of the recipient MMSC.
+     * @return A byte array which contains the response data.
+     *         If an HTTP error code is returned, an IOException will be thrown.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(>=400) returned from the server.
+     */
+    protected byte[] sendPdu(long token, ProgressCallbackEntity.Content pdu, String mmscUrl)
+            throws IOException {
         ensureRouteToHost(mmscUrl, mTransactionSettings);
-        return HttpUtils.httpConnection(
+
+        long start = TransactionMetrics.now();
+        byte[] response = HttpUtils.httpConnection(
                 mContext, token,
                 mmscUrl,
                 pdu, HttpUtils.HTTP_POST_METHOD,
                 mTransactionSettings.isProxySet(),
                 mTransactionSettings.getProxyAddress(),
                 mTransactionSettings.getProxyPort());
+        TransactionMetrics.getInstance().record(TransactionMetrics.PHASE_HTTP, getType(), start);
+        return response;
+    }
+
+    /**
+     * Queue an acknowledgement (M-NotifyResp.ind, M-Acknowledge.ind) to be
+     * sent by an {@link AckTransaction}, so that this transaction doesn't
+     * wait for the round trip. If the ack can't be queued it is sent now.
+     *
+     * @param pdu The composed acknowledgement.
+     * @param mmscUrl The URL to post it to, or null for the MMSC of the
+     *        connection settings.
+     */
+    protected void queueAck(byte[] pdu, String mmscUrl) throws IOException {
+        if (mmscUrl == null) {
+            mmscUrl = mTransactionSettings.getMmscUrl();
+        }
+        try {
+            AckQueue.getInstance(mContext).add(pdu, mmscUrl);
+        } catch (IOException e) {
+            Log.w(LogTag.TRANSACTION, "Cannot queue acknowledgement, sending it now", e);
+            long start = TransactionMetrics.now();
+            sendPdu(pdu, mmscUrl);
+            TransactionMetrics.getInstance().record(TransactionMetrics.PHASE_ACK, getType(), start);
+        }
     }
 
     /**
      * A common method to retrieve a PDU from MMSC.
      *
+     * The response is spooled to a private file while it is being received
+     * and read back in one piece, so the heap only ever holds one copy of it.
+     * If the download fails halfway, what was received is kept and the next
+     * attempt for the same URL only asks the MMSC for the rest.
+     *
      * @param url The URL of the message which we are going to retrieve.
      * @return A byte array which contains the data of the PDU.
      *         If the status code is not correct, an IOException will be thrown.
@@ -182,75 +271,101 @@ public abstract class Transaction extends Observable {
      *         an HTTP error code(>=400) returned from the server.
      */
     protected byte[] getPdu(String url) throws IOException {
+        return getPdu(url, null);
+    }
+
+    /**
+     * Retrieve a PDU like {@link #getPdu(String)}, handing its Message-ID and
+     * Transaction-ID to a listener as soon as the headers are received. The
+     * listener can stop the download by throwing a
+     * {@link HttpUtils.TransferAbortedException}, which is passed on to the
+     * caller; the partial download is discarded.
+     *
+     * @param listener The listener, or null not to scan the headers.
+     */
+    protected byte[] getPdu(String url, PduHeaderScanner.Listener listener)
+            throws IOException {
         ensureRouteToHost(url, mTransactionSettings);
-        return HttpUtils.httpConnection(
-                mContext, SendingProgressTokenManager.NO_TOKEN,
-                url, null, HttpUtils.HTTP_GET_METHOD,
-                mTransactionSettings.isProxySet(),
-                mTransactionSettings.getProxyAddress(),
-                mTransactionSettings.getProxyPort());
+
+        PduSpool spool = PduSpool.open(mContext, url);
+        HttpUtils.BodyReceiver receiver = spool.newBodyReceiver();
+        if (listener != null) {
+            receiver = PduHeaderScanner.wrap(receiver, listener);
+        }
+        byte[] pdu = null;
+        boolean discard = false;
+        try {
+            long start = TransactionMetrics.now();
+            long length = HttpUtils.httpConnection(
+                    mContext, SendingProgressTokenManager.NO_TOKEN,
+                    url, null, HttpUtils.HTTP_GET_METHOD,
+                    mTransactionSettings.isProxySet(),
+                    mTransactionSettings.getProxyAddress(),
+                    mTransactionSettings.getProxyPort(),
+                    receiver);
+            long elapsed = TransactionMetrics.now() - start;
+            TransactionMetrics.getInstance().record(
+                    TransactionMetrics.PHASE_HTTP, getType(), start);
+            if (length >= 0) {
+                pdu = spool.readFully();
+                // Only the bytes of this request; a resumed download got the rest earlier.
+                DownloadScheduler.recordDownload(length, elapsed);
+            }
+        } catch (HttpUtils.TransferAbortedException e) {
+            discard = true;
+            throw e;
+        } catch (IOException e) {
+            // No use keeping the part received if the message will never come, say 404.
+            discard = TransactionFailure.isPermanent(TransactionFailure.classify(e));
+            throw e;
+        } finally {
+            if ((pdu != null) || discard) {
+                spool.delete();
+            } else {
+                spool.close();
+            }
+        }
+        return pdu;
     }
 
     /**
      * Make sure that a network route exists to allow us to reach the host in the
      * supplied URL, and to the MMS proxy host as well, if a proxy is used.
+     * Lookups and routes are cached by {@link RouteCache} for the lease.
      * @param url The URL of the MMSC to which we need a route
      * @param settings Specifies the address of the proxy host, if any
      * @throws IOException if the host doesn't exist, or adding the route fails.
      */
     private void ensureRouteToHost(String url, TransactionSettings settings) throws IOException {
+        long start = TransactionMetrics.now();
         ConnectivityManager connMgr =
                 (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        RouteCache cache = RouteCache.getInstance();
 
-        int inetAddr;
-        if (settings.isProxySet()) {
-            String proxyAddr = settings.getProxyAddress();
-            inetAddr = lookupHost(proxyAddr);
-            if (inetAddr == -1) {
-                throw new IOException("Cannot establish route for " + url + ": Unknown host");
-            } else {
-                if (!connMgr.requestRouteToHost(
-                        ConnectivityManager.TYPE_MOBILE_MMS, inetAddr)) {
-                    throw new IOException("Cannot establish route to proxy " + inetAddr);
-                }
-            }
-        } else {
-            Uri uri = Uri.parse(url);
-            inetAddr = lookupHost(uri.getHost());
-            if (inetAddr == -1) {
-                throw new IOException("Cannot establish route for " + url + ": Unknown host");
+        String host = settings.isProxySet() ? settings.getProxyAddress() : Uri.parse(url).getHost();
+        InetAddress inetAddr;
+        try {
+            inetAddr = cache.lookupHost(host);
+        } catch (UnknownHostException e) {
+            IOException ioe = new IOException("Cannot establish route for " + url
+                    + ": Unknown host");
+            ioe.initCause(e);
+            throw ioe;
+        }
+
+        if (!cache.requestRouteToHost(connMgr, inetAddr)) {
+            if (settings.isProxySet()) {
+                throw new IOException("Cannot establish route to proxy " + inetAddr);
             } else {
-                if (!connMgr.requestRouteToHost(
-                        ConnectivityManager.TYPE_MOBILE_MMS, inetAddr)) {
-                    throw new IOException("Cannot establish route to " + inetAddr + " for " + url);
-                }
+                throw new IOException("Cannot establish route to " + inetAddr + " for " + url);
             }
         }
+        TransactionMetrics.getInstance().record(TransactionMetrics.PHASE_ROUTE, getType(), start);
     }
 
-    /**
-     * Look up a host name and return the result as an int. Works if the argument
-     * is an IP address in dot notation. Obviously, this can only be used for IPv4
-     * addresses.
-     * @param hostname the name of the host (or the IP address)
-     * @return the IP address as an {@code int} in network byte order
-     */
-    // TODO: move this to android-common
-    public static int lookupHost(String hostname) {
-        InetAddress inetAddress;
-        try {
-            inetAddress = InetAddress.getByName(hostname);
-        } catch (UnknownHostException e) {
-            return -1;
-        }
-        byte[] addrBytes;
-        int addr;
-        addrBytes = inetAddress.getAddress();
-        addr = ((addrBytes[3] & 0xff) << 24)
-                | ((addrBytes[2] & 0xff) << 16)
-                | ((addrBytes[1] & 0xff) << 8)
-                |  (addrBytes[0] & 0xff);
-        return addr;
+    @Override
+    protected int getMetricsType() {
+        return getType();
     }
 
     @Override
@@ -61,6 +61,12 @@ public class TransactionBundle {
      */
     public static final String URI = "uri";
 
+    /**
+     * Key of the URIs of several transactions of the same type, started with
+     * one command. Used instead of URI.
+     */
+    public static final String URIS = "uris";
+
     /**
      * This is the real Bundle to be sent to the TransactionService upon calling
      * startService.
@@ -68,11 +74,12 @@ public class TransactionBundle {
     private final Bundle mBundle;
 
     /**
-     * Private constructor.
+     * Constructor of a bundle for transactions that don't need a URI, such
+     * as ACK_TRANSACTION.
      *
      * @param transactionType
      */
-    private TransactionBundle(int transactionType) {
+    public TransactionBundle(int transactionType) {
         mBundle = new Bundle();
         mBundle.putInt(TRANSACTION_TYPE, transactionType);
     }
@@ -92,6 +99,22 @@ public class TransactionBundle {
         mBundle.putString(URI, uri);
     }
 
+    /**
+     * Constructor of a bundle that starts one transaction of the same type
+     * for each of several URIs.
+     *
+     * @param transactionType
+     * @param uris The relevant URIs, as for {@link #TransactionBundle(int, String)}.
+     */
+    public TransactionBundle(int transactionType, String[] uris) {
+        this(transactionType);
+        if (uris.length == 1) {
+            mBundle.putString(URI, uris[0]);
+        } else {
+            mBundle.putStringArray(URIS, uris);
+        }
+    }
+
     /**
      * Constructor of a transaction bundle used for incoming bundle instances.
      *
@@ -128,6 +151,14 @@ public class TransactionBundle {
         return mBundle.getString(URI);
     }
 
+    /**
+     * Returns the URIs of a bundle that starts several transactions, or null
+     * if it starts just one.
+     */
+    public String[] getUris() {
+        return mBundle.getStringArray(URIS);
+    }
+
     public byte[] getPushData() {
         return mBundle.getByteArray(PUSH_DATA);
     }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs transactions on a fixed number of worker threads owned by the
+ * TransactionService. Waiting transactions are started in priority order:
+ * user-initiated sends first, then manual downloads, then auto-downloads,
+ * then acknowledgements and read reports. Transactions of the same priority
+ * are started in the order they were submitted, except auto-downloads, which
+ * a {@link DownloadScheduler} releases smallest first.
+ */
+public class TransactionExecutor {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    // Priority classes, lowest value runs first.
+    public static final int PRIORITY_SEND               = 0;
+    public static final int PRIORITY_MANUAL_DOWNLOAD    = 1;
+    public static final int PRIORITY_AUTO_DOWNLOAD      = 2;
+    public static final int PRIORITY_REPORT             = 3;
+    private static final int PRIORITY_COUNT             = 4;
+
+    private static final String[] PRIORITY_NAMES = {
+        "send", "manual-download", "auto-download", "report"
+    };
+
+    private final ThreadPoolExecutor mExecutor;
+    private final DownloadScheduler mDownloads;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Per priority class statistics, guarded by "this".
+    private final int[] mQueueDepth = new int[PRIORITY_COUNT];
+    private final int[] mMaxQueueDepth = new int[PRIORITY_COUNT];
+    private final int[] mStarted = new int[PRIORITY_COUNT];
+    private final long[] mTotalWait = new long[PRIORITY_COUNT];
+    private final long[] mMaxWait = new long[PRIORITY_COUNT];
+
+    public TransactionExecutor(int workerCount) {
+        if (workerCount < 1) {
+            workerCount = 1;
+        }
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "TransactionWorker #" + mCount.getAndIncrement());
+                    }
+                });
+        mDownloads = new DownloadScheduler(mExecutor);
+    }
+
+    /**
+     * Returns the priority class a transaction is scheduled with.
+     */
+    public static int getPriority(Transaction transaction) {
+        switch (transaction.getType()) {
+            case Transaction.SEND_TRANSACTION:
+                return PRIORITY_SEND;
+            case Transaction.RETRIEVE_TRANSACTION:
+                return PRIORITY_MANUAL_DOWNLOAD;
+            case Transaction.NOTIFICATION_TRANSACTION:
+                return PRIORITY_AUTO_DOWNLOAD;
+            default:
+                return PRIORITY_REPORT;
+        }
+    }
+
+    /**
+     * Queue a transaction. {@link Transaction#process()} will be called on
+     * one of the worker threads.
+     */
+    public void execute(Transaction transaction) {
+        Task task = new Task(transaction, getPriority(transaction),
+                mSequence.getAndIncrement());
+        synchronized (this) {
+            int depth = ++mQueueDepth[task.mPriority];
+            if (depth > mMaxQueueDepth[task.mPriority]) {
+                mMaxQueueDepth[task.mPriority] = depth;
+            }
+        }
+        if (task.mPriority == PRIORITY_AUTO_DOWNLOAD) {
+            mDownloads.submit(task, transaction.getExpectedSize(), task.mQueuedAt);
+        } else {
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Stop accepting new transactions. Those already queued still run.
+     */
+    public void shutdown() {
+        mDownloads.startAll();
+        mExecutor.shutdown();
+    }
+
+    private synchronized void onTaskStarted(Task task) {
+        long wait = SystemClock.elapsedRealtime() - task.mQueuedAt;
+        int priority = task.mPriority;
+        mQueueDepth[priority]--;
+        mStarted[priority]++;
+        mTotalWait[priority] += wait;
+        if (wait > mMaxWait[priority]) {
+            mMaxWait[priority] = wait;
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "[TransactionExecutor] start " + task.mTransaction + " after "
+                    + wait + "ms in " + PRIORITY_NAMES[priority] + " queue");
+        }
+    }
+
+    public synchronized void dump() {
+        Log.d(TAG, "**** TransactionExecutor dump ****");
+        Log.d(TAG, "workers=" + mExecutor.getCorePoolSize()
+                + " active=" + mExecutor.getActiveCount()
+                + " queued=" + mExecutor.getQueue().size());
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            long avgWait = (mStarted[i] == 0) ? 0 : (mTotalWait[i] / mStarted[i]);
+            Log.d(TAG, PRIORITY_NAMES[i]
+                    + ": depth=" + mQueueDepth[i]
+                    + " maxDepth=" + mMaxQueueDepth[i]
+                    + " started=" + mStarted[i]
+                    + " avgWait=" + avgWait + "ms"
+                    + " maxWait=" + mMaxWait[i] + "ms");
+        }
+        mDownloads.dump();
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final Transaction mTransaction;
+        final int mPriority;
+        final long mSequence;
+        final long mQueuedAt;
+
+        Task(Transaction transaction, int priority, long sequence) {
+            mTransaction = transaction;
+            mPriority = priority;
+            mSequence = sequence;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        public void run() {
+            onTaskStarted(this);
+            try {
+                mTransaction.process();
+            } finally {
+                if (mPriority == PRIORITY_AUTO_DOWNLOAD) {
+                    mDownloads.onFinished(this);
+                }
+            }
+        }
+
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            if (mSequence != another.mSequence) {
+                return mSequence < another.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.provider.Telephony.MmsSms;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Sorts the reason a transaction failed into a few classes that decide
+ * whether, and how soon, it is worth trying again.
+ */
+public final class TransactionFailure {
+    public static final int UNKNOWN         = 0;
+    public static final int DNS             = 1;    // MMSC or proxy host unknown
+    public static final int ROUTE           = 2;    // No route over the MMS APN
+    public static final int TIMEOUT         = 3;    // Connect or read timed out
+    public static final int NETWORK         = 4;    // Any other I/O failure
+    public static final int HTTP_CLIENT     = 5;    // HTTP 4xx
+    public static final int HTTP_SERVER     = 6;    // HTTP 5xx
+    public static final int PARSE           = 7;    // Malformed or unexpected PDU
+    public static final int MMS_PERMANENT   = 8;    // Permanent M-Send.conf status
+
+    private static final String[] NAMES = {
+        "unknown", "dns", "route", "timeout", "network",
+        "http-4xx", "http-5xx", "parse", "mms-permanent"
+    };
+
+    private TransactionFailure() {
+    }
+
+    /**
+     * Classify the exception a transaction failed with, looking through the
+     * exceptions it wraps.
+     *
+     * @param cause The exception, or null if the transaction failed without one.
+     */
+    public static int classify(Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof UnknownHostException) {
+                return DNS;
+            }
+            if ((t instanceof SocketTimeoutException)
+                    || (t instanceof ConnectTimeoutException)) {
+                return TIMEOUT;
+            }
+            if (t instanceof HttpUtils.HttpStatusException) {
+                int status = ((HttpUtils.HttpStatusException) t).getStatusCode();
+                if ((status == 408) || (status == 429)) {
+                    // Request Timeout and Too Many Requests are worth retrying.
+                    return HTTP_SERVER;
+                }
+                return (status >= 500) ? HTTP_SERVER : HTTP_CLIENT;
+            }
+            if ((t instanceof MmsException) || (t instanceof ClassCastException)) {
+                // Thrown for PDUs PduParser rejected or that have the wrong type.
+                return PARSE;
+            }
+        }
+
+        // What's left is told apart by the type of the outermost exception.
+        if (cause instanceof InterruptedIOException) {
+            return TIMEOUT;
+        }
+        if (cause instanceof IOException) {
+            String message = cause.getMessage();
+            if ((message != null) && message.startsWith("Cannot establish route")) {
+                return ROUTE;
+            }
+            return NETWORK;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Classify the response status of a failed M-Send.req.
+     *
+     * @return {@link #MMS_PERMANENT} for a permanent error status, otherwise
+     *         {@code failure} unchanged.
+     */
+    public static int classifyResponseStatus(int respStatus, int failure) {
+        if (respStatus >= PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_FAILURE) {
+            return MMS_PERMANENT;
+        }
+        return failure;
+    }
+
+    /**
+     * Whether a failure of this class will happen again however often the
+     * transaction is retried.
+     */
+    public static boolean isPermanent(int failure) {
+        return (failure == HTTP_CLIENT) || (failure == PARSE) || (failure == MMS_PERMANENT);
+    }
+
+    /**
+     * Returns the PendingMessages error type recorded for a failure class.
+     */
+    public static int toErrorType(int failure) {
+        switch (failure) {
+            case DNS:
+            case ROUTE:
+            case TIMEOUT:
+            case NETWORK:
+                return MmsSms.ERR_TYPE_TRANSPORT_FAILURE;
+            case HTTP_SERVER:
+                return MmsSms.ERR_TYPE_MMS_PROTO_TRANSIENT;
+            case HTTP_CLIENT:
+            case PARSE:
+            case MMS_PERMANENT:
+                return MmsSms.ERR_TYPE_MMS_PROTO_PERMANENT;
+            default:
+                return MmsSms.ERR_TYPE_GENERIC;
+        }
+    }
+
+    public static String getName(int failure) {
+        return ((failure >= 0) && (failure < NAMES.length)) ? NAMES[failure] : "?";
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An append-only log of the transactions the TransactionService started and
+ * finished, so that a new process knows exactly which transactions the
+ * previous one was killed in the middle of and can start them again right
+ * away. Their partial downloads are kept by {@link PduSpool} and their acks
+ * by {@link AckQueue}.
+ *
+ * Every start and finish appends a small record. Once most of the records
+ * describe finished transactions, the log is compacted into a new file
+ * holding only the unfinished ones. A record cut short by a crash ends the
+ * log; everything before it is still good.
+ */
+public class TransactionJournal {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final String JOURNAL_FILE = "mms_journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int OP_START = 1;
+    private static final int OP_FINISH = 2;
+
+    // Don't bother compacting logs shorter than this.
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    // Transactions not finished within a day are left to the retry scheme.
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static TransactionJournal sInstance;
+
+    private final File mFile;
+    private DataOutputStream mOut;
+    private int mRecords;
+
+    // Unfinished transactions by identity, oldest first.
+    private final LinkedHashMap<String, Entry> mOpen = new LinkedHashMap<String, Entry>();
+    // The ones a previous process left unfinished.
+    private final LinkedHashMap<String, Entry> mInterrupted = new LinkedHashMap<String, Entry>();
+
+    /**
+     * A transaction that was started.
+     */
+    public static class Entry {
+        private final String mKey;
+        private final int mType;
+        private final String mUri;
+        private final long mTime;
+
+        Entry(String key, int type, String uri, long time) {
+            mKey = key;
+            mType = type;
+            mUri = uri;
+            mTime = time;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getUri() {
+            return mUri;
+        }
+    }
+
+    TransactionJournal(File file) {
+        mFile = file;
+        load();
+    }
+
+    public static synchronized TransactionJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TransactionJournal(
+                    new File(context.getFilesDir(), JOURNAL_FILE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Record that a transaction was started.
+     *
+     * @param key The identity of the transaction, see
+     *        {@link Transaction#getIdentity()}.
+     * @param type The type of the transaction.
+     * @param uri The URI the transaction was launched with.
+     */
+    public synchronized void started(String key, int type, String uri) {
+        Entry entry = new Entry(key, type, uri, System.currentTimeMillis());
+        mOpen.put(entry.mKey, entry);
+        mInterrupted.remove(entry.mKey);
+        append(entry, OP_START);
+    }
+
+    /**
+     * Record that a transaction has finished, successfully or not.
+     */
+    public synchronized void finished(String key) {
+        Entry entry = mOpen.remove(key);
+        if (entry != null) {
+            append(entry, OP_FINISH);
+            maybeCompact();
+        }
+    }
+
+    /**
+     * Returns the transactions a previous process started but didn't
+     * finish, and forgets them; they are recorded again when started anew.
+     */
+    public synchronized List<Entry> takeInterrupted() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(mInterrupted.values());
+        for (Entry entry : entries) {
+            mOpen.remove(entry.mKey);
+            append(entry, OP_FINISH);
+        }
+        mInterrupted.clear();
+        maybeCompact();
+        return entries;
+    }
+
+    public synchronized String getStats() {
+        return "open=" + mOpen.size()
+                + " interrupted=" + mInterrupted.size()
+                + " records=" + mRecords;
+    }
+
+    private void append(Entry entry, int op) {
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true)));
+            }
+            write(mOut, entry, op);
+            // Out of the process, so that it survives the process being killed.
+            mOut.flush();
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "[TransactionJournal] Cannot append: " + e.getMessage());
+            // Don't leave a partial record for the next one to follow.
+            compact();
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry, int op) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(entry.mKey);
+        if (op == OP_START) {
+            out.writeInt(entry.mType);
+            out.writeUTF(entry.mUri);
+            out.writeLong(entry.mTime);
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        boolean truncated = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            try {
+                while (true) {
+                    int op = in.read();
+                    if (op < 0) {
+                        break;
+                    }
+                    String key = in.readUTF();
+                    if (op == OP_START) {
+                        int type = in.readInt();
+                        String uri = in.readUTF();
+                        long time = in.readLong();
+                        mOpen.put(key, new Entry(key, type, uri, time));
+                    } else if (op == OP_FINISH) {
+                        mOpen.remove(key);
+                    } else {
+                        throw new IOException("Unknown record " + op);
+                    }
+                    mRecords++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // The last record was cut short.
+            truncated = true;
+        } catch (IOException e) {
+            Log.w(TAG, "[TransactionJournal] Cannot read " + mFile, e);
+            truncated = true;
+        }
+
+        long oldest = System.currentTimeMillis() - MAX_AGE;
+        for (Entry entry : new ArrayList<Entry>(mOpen.values())) {
+            if (entry.mTime < oldest) {
+                mOpen.remove(entry.mKey);
+            }
+        }
+        mInterrupted.putAll(mOpen);
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "[TransactionJournal] loaded " + mRecords + " records, "
+                    + mInterrupted.size() + " interrupted");
+        }
+
+        if (truncated) {
+            compact();
+        }
+    }
+
+    private void maybeCompact() {
+        if ((mRecords >= MIN_COMPACT_RECORDS) && (mRecords >= 4 * mOpen.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * Replace the log with one holding a start record for every unfinished
+     * transaction.
+     */
+    private void compact() {
+        closeOutput();
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                for (Entry entry : mOpen.values()) {
+                    write(out, entry, OP_START);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            mRecords = mOpen.size();
+        } catch (IOException e) {
+            Log.w(TAG, "[TransactionJournal] Cannot compact: " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more to lose.
+            }
+            mOut = null;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for the phases of MMS transactions, kept per
+ * transaction type. Recording is lock free so that it can be done from the
+ * transaction worker threads without them contending with each other.
+ *
+ * A phase is timed by taking {@link #now()} before it starts and passing
+ * that to {@link #record} once it has completed successfully. Failed phases
+ * are not recorded.
+ *
+ * When enabled in mms_config.xml, every recorded span is also appended to a
+ * small rolling log in the application's files directory, so that latency
+ * can be collected from a device in the field.
+ */
+public class TransactionMetrics {
+    private static final String TAG = "TransactionMetrics";
+
+    // Phases of a transaction.
+    public static final int PHASE_CONNECT   = 0;    // MMS APN requested until connected
+    public static final int PHASE_ROUTE     = 1;    // Host lookup and route set up
+    public static final int PHASE_HTTP      = 2;    // HTTP request until the body is read
+    public static final int PHASE_PARSE     = 3;    // PduParser
+    public static final int PHASE_PERSIST   = 4;    // PduPersister
+    public static final int PHASE_ACK       = 5;    // Composing and sending an ack
+    public static final int PHASE_DISPATCH  = 6;    // Completion until observers are notified
+    private static final int PHASE_COUNT    = 7;
+
+    private static final String[] PHASE_NAMES = {
+        "connect", "route", "http", "parse", "persist", "ack", "dispatch"
+    };
+
+    /**
+     * Type to record phases that don't belong to any single transaction,
+     * such as setting up the connection.
+     */
+    public static final int TYPE_NONE = -1;
+
+    // Transaction types are 0 to 4; TYPE_NONE is kept in the last slot.
+    private static final int TYPE_COUNT = 6;
+    private static final String[] TYPE_NAMES = {
+        "notification", "retrieve", "send", "read-report", "ack", "service"
+    };
+
+    // Counters of events that are not timed.
+    public static final int COUNTER_DNS_HIT         = 0;
+    public static final int COUNTER_DNS_MISS        = 1;
+    public static final int COUNTER_ROUTE_HIT       = 2;
+    public static final int COUNTER_ROUTE_MISS      = 3;
+    public static final int COUNTER_DUPLICATE_ABORT = 4;
+    public static final int COUNTER_DISPATCH_CONTENDED = 5;
+    private static final int COUNTER_COUNT          = 6;
+
+    private static final String[] COUNTER_NAMES = {
+        "dnsHit", "dnsMiss", "routeHit", "routeMiss", "duplicateAbort", "dispatchContended"
+    };
+
+    // Upper bounds of the histogram buckets in milliseconds. The last bucket
+    // takes everything above the last bound.
+    private static final long[] BUCKET_BOUNDS = {
+        10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS.length + 1;
+
+    private static final String LOG_FILE = "mms_metrics.log";
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+
+    private static TransactionMetrics sInstance;
+
+    private final Histogram[] mHistograms = new Histogram[PHASE_COUNT * TYPE_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private final File mLogFile;
+
+    private static class Histogram {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotal = new AtomicLong();
+        final AtomicLong mMax = new AtomicLong();
+
+        void add(long millis) {
+            int bucket = 0;
+            while ((bucket < BUCKET_BOUNDS.length) && (millis > BUCKET_BOUNDS[bucket])) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotal.addAndGet(millis);
+
+            long max = mMax.get();
+            while ((millis > max) && !mMax.compareAndSet(max, millis)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Returns the upper bound of the bucket the given percentile falls
+         * in, or the maximum if that is smaller.
+         */
+        long percentile(long count, int percent) {
+            long rank = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS[i], mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+
+    private TransactionMetrics(Context context) {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+        mLogFile = MmsConfig.getTransactionMetricsLogEnabled()
+                ? new File(context.getFilesDir(), LOG_FILE) : null;
+    }
+
+    public static void init(Context context) {
+        if (sInstance != null) {
+            Log.w(TAG, "Already initialized.");
+        }
+        sInstance = new TransactionMetrics(context);
+    }
+
+    public static TransactionMetrics getInstance() {
+        if (sInstance == null) {
+            throw new IllegalStateException("Uninitialized.");
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the start time of a phase, to be passed to {@link #record}.
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record that a phase which started at {@code startTime} has completed.
+     *
+     * @param phase One of the PHASE_ constants.
+     * @param type The type of the transaction, or {@link #TYPE_NONE}.
+     * @param startTime The value {@link #now()} returned when the phase started.
+     */
+    public void record(int phase, int type, long startTime) {
+        long millis = now() - startTime;
+        if ((type < 0) || (type >= TYPE_COUNT - 1)) {
+            type = TYPE_COUNT - 1;
+        }
+        mHistograms[phase * TYPE_COUNT + type].add(millis);
+
+        if (mLogFile != null) {
+            appendToLog(System.currentTimeMillis() + " " + TYPE_NAMES[type] + " "
+                    + PHASE_NAMES[phase] + " " + millis);
+        }
+    }
+
+    /**
+     * Count an event, one of the COUNTER_ constants.
+     */
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    private synchronized void appendToLog(String line) {
+        try {
+            if (mLogFile.length() > MAX_LOG_SIZE) {
+                File old = new File(mLogFile.getPath() + ".1");
+                old.delete();
+                mLogFile.renameTo(old);
+            }
+            FileWriter writer = new FileWriter(mLogFile, true);
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write metrics log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Print every phase that has been recorded at least once, with its count,
+     * mean and approximate percentiles, followed by the event counters and
+     * the statistics of the HTTP connection pool, the download spool and the
+     * retrieval pipeline stages.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Transaction latency (ms): count avg p50 p90 p99 max");
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                Histogram h = mHistograms[phase * TYPE_COUNT + type];
+                long count = h.mCount.get();
+                if (count == 0) {
+                    continue;
+                }
+                writer.println("  " + PHASE_NAMES[phase] + "/" + TYPE_NAMES[type]
+                        + ": " + count
+                        + " " + (h.mTotal.get() / count)
+                        + " " + h.percentile(count, 50)
+                        + " " + h.percentile(count, 90)
+                        + " " + h.percentile(count, 99)
+                        + " " + h.mMax.get());
+            }
+        }
+
+        StringBuilder counters = new StringBuilder("Counters:");
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters.append(' ').append(COUNTER_NAMES[i]).append('=').append(mCounters.get(i));
+        }
+        writer.println(counters);
+        writer.println("HttpConnectionPool: " + HttpConnectionPool.getInstance().getStats());
+        writer.println("PduSpool: " + PduSpool.getStats());
+        writer.println("DuplicateFilter: " + DuplicateFilter.getInstance().getStats());
+        writer.println("RetrievalPipeline:");
+        for (String stage : RetrievalPipeline.getInstance().getStats()) {
+            writer.println("  " + stage);
+        }
+    }
+
+    public void dump() {
+        StringWriter buffer = new StringWriter();
+        dump(new PrintWriter(buffer));
+
+        Log.d(LogTag.TRANSACTION, "**** TransactionMetrics dump ****");
+        for (String line : buffer.toString().split("\n")) {
+            Log.d(LogTag.TRANSACTION, line);
+        }
+    }
+}
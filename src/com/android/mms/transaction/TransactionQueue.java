@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A FIFO queue of transactions indexed by {@link Transaction#getIdentity()},
+ * so that checking for an equivalent transaction, removing one and taking the
+ * oldest one are all constant time. Not thread safe; the TransactionService
+ * guards its queues with its own lock.
+ */
+public class TransactionQueue {
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    private static class Entry {
+        final Transaction mTransaction;
+        final long mAddedAt;
+
+        Entry(Transaction transaction) {
+            mTransaction = transaction;
+            mAddedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Append a transaction to the end of the queue.
+     *
+     * @return false if an equivalent transaction was already queued, in which
+     *         case the queue is left unchanged.
+     */
+    public boolean add(Transaction transaction) {
+        String key = transaction.getIdentity();
+        if (mEntries.containsKey(key)) {
+            return false;
+        }
+        mEntries.put(key, new Entry(transaction));
+        return true;
+    }
+
+    /**
+     * Whether a transaction equivalent to the given one is queued.
+     */
+    public boolean containsEquivalent(Transaction transaction) {
+        return mEntries.containsKey(transaction.getIdentity());
+    }
+
+    /**
+     * Remove this very transaction from the queue.
+     *
+     * @return true if it was queued.
+     */
+    public boolean remove(Transaction transaction) {
+        String key = transaction.getIdentity();
+        Entry entry = mEntries.get(key);
+        if ((entry == null) || (entry.mTransaction != transaction)) {
+            return false;
+        }
+        mEntries.remove(key);
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest transaction, or null if the queue is empty.
+     */
+    public Transaction poll() {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        if (!iter.hasNext()) {
+            return null;
+        }
+        Transaction transaction = iter.next().mTransaction;
+        iter.remove();
+        return transaction;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Print the queued transactions, oldest first, with how long each has
+     * been waiting.
+     */
+    public void dump(PrintWriter writer, String name) {
+        long now = SystemClock.elapsedRealtime();
+        writer.println(name + ": " + mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            writer.println("  " + entry.mTransaction.getIdentity()
+                    + " sid=" + entry.mTransaction.getServiceId()
+                    + " age=" + (now - entry.mAddedAt) + "ms");
+        }
+    }
+}
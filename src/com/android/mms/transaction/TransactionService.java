@@ -20,6 +20,7 @@ package com.android.mms.transaction;
 import com.android.common.NetworkConnectivityListener;
 import com.android.mms.R;
 import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
 import com.android.mms.util.RateController;
 import com.google.android.mms.pdu.GenericPdu;
 import com.google.android.mms.pdu.NotificationInd;
@@ -45,12 +46,18 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The TransactionService of the MMS Client is responsible for handling requests
@@ -114,6 +121,7 @@ public class TransactionService extends Service implements Observer {
     private static final int EVENT_DATA_STATE_CHANGED = 2;
     private static final int EVENT_CONTINUE_MMS_CONNECTIVITY = 3;
     private static final int EVENT_HANDLE_NEXT_PENDING_TRANSACTION = 4;
+    private static final int EVENT_SEND_ACKS = 5;
     private static final int EVENT_QUIT = 100;
 
     private static final int TOAST_MSG_QUEUED = 1;
@@ -126,11 +134,31 @@ public class TransactionService extends Service implements Observer {
 
     private ServiceHandler mServiceHandler;
     private Looper mServiceLooper;
-    private final ArrayList<Transaction> mProcessing  = new ArrayList<Transaction>();
-    private final ArrayList<Transaction> mPending  = new ArrayList<Transaction>();
+    private TransactionExecutor mExecutor;
+    // Notifies the observers of finished transactions, or null to have the
+    // transaction threads do that themselves.
+    private ExecutorService mDispatcher;
+    // Both queues are guarded by mProcessing.
+    private final TransactionQueue mProcessing = new TransactionQueue();
+    private final TransactionQueue mPending = new TransactionQueue();
     private ConnectivityManager mConnMgr;
     private NetworkConnectivityListener mConnectivityListener;
     private PowerManager.WakeLock mWakeLock;
+    private int mLastStartId;
+
+    // True while we hold the MMS feature and know the APN to be up, so that
+    // new transactions don't need to ask for it again. The lease renewal
+    // timer keeps it up.
+    private volatile boolean mMmsConnectivityActive;
+    // True from beginMmsConnectivity() until endMmsConnectivity().
+    private volatile boolean mLeaseHeld;
+    // An AckTransaction is about to be started on the service thread.
+    // Guarded by mProcessing.
+    private boolean mAckRequested;
+    private final LeaseStats mLeaseStats = new LeaseStats();
+
+    // When the MMS APN was asked for, or 0 when we aren't waiting for it.
+    private volatile long mConnectRequestTime;
 
     public Handler mToastHandler = new Handler() {
         @Override
@@ -165,6 +193,18 @@ public class TransactionService extends Service implements Observer {
         mServiceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(mServiceLooper);
 
+        mExecutor = new TransactionExecutor(MmsConfig.getTransactionThreadCount());
+        if (MmsConfig.getAsyncTransactionDispatch()) {
+            mDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TransactionDispatcher");
+                }
+            });
+        }
+
+        // Nothing can be downloading yet; drop whatever a dead process left.
+        PduSpool.purge(this);
+
         mConnectivityListener = new NetworkConnectivityListener();
         mConnectivityListener.registerHandler(mServiceHandler, EVENT_DATA_STATE_CHANGED);
         mConnectivityListener.startListening(this);
@@ -176,6 +216,7 @@ public class TransactionService extends Service implements Observer {
             return Service.START_NOT_STICKY;
         }
         mConnMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        mLastStartId = startId;
         boolean noNetwork = !isNetworkAvailable();
 
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -183,8 +224,13 @@ public class TransactionService extends Service implements Observer {
             Log.v(TAG, "    networkAvailable=" + !noNetwork);
         }
 
+        // Before anything else could start the same transactions again.
+        int resumed = noNetwork ? 0 : resumeInterruptedTransactions(startId);
+
         if (ACTION_ONALARM.equals(intent.getAction()) || (intent.getExtras() == null)) {
-            // Scan database to find all pending operations.
+            // Scan database to find all pending operations, after the
+            // retries of transactions that just failed are written.
+            RetryScheduler.getInstance(this).flush();
             Cursor cursor = PduPersister.getPduPersister(this).getPendingMessages(
                     System.currentTimeMillis());
             if (cursor != null) {
@@ -196,15 +242,16 @@ public class TransactionService extends Service implements Observer {
                     }
 
                     if (count == 0) {
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "onStart: no pending messages. Stopping service.");
-                        }
                         RetryScheduler.setRetryAlarm(this);
-                        stopSelfIfIdle(startId);
+                        if (resumed == 0) {
+                            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                                Log.v(TAG, "onStart: no pending messages. Stopping service.");
+                            }
+                            stopSelfIfIdle(startId);
+                        }
                         return Service.START_NOT_STICKY;
                     }
 
-                    int columnIndexOfMsgId = cursor.getColumnIndexOrThrow(PendingMessages.MSG_ID);
                     int columnIndexOfMsgType = cursor.getColumnIndexOrThrow(
                             PendingMessages.MSG_TYPE);
 
@@ -224,40 +271,19 @@ public class TransactionService extends Service implements Observer {
                             onNetworkUnavailable(startId, transactionType);
                             return Service.START_NOT_STICKY;
                         }
-                        switch (transactionType) {
-                            case -1:
-                                break;
-                            case Transaction.RETRIEVE_TRANSACTION:
-                                // If it's a transiently failed transaction,
-                                // we should retry it in spite of current
-                                // downloading mode.
-                                int failureType = cursor.getInt(
-                                        cursor.getColumnIndexOrThrow(
-                                                PendingMessages.ERROR_TYPE));
-                                if (!isTransientFailure(failureType)) {
-                                    break;
-                                }
-                                // fall-through
-                            default:
-                                Uri uri = ContentUris.withAppendedId(
-                                        Mms.CONTENT_URI,
-                                        cursor.getLong(columnIndexOfMsgId));
-                                TransactionBundle args = new TransactionBundle(
-                                        transactionType, uri.toString());
-                                // FIXME: We use the same startId for all MMs.
-                                launchTransaction(startId, args, false);
-                                break;
-                        }
+                        launchPendingMessage(startId, cursor, transactionType);
                     }
                 } finally {
                     cursor.close();
                 }
             } else {
-                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                    Log.v(TAG, "onStart: no pending messages. Stopping service.");
-                }
                 RetryScheduler.setRetryAlarm(this);
-                stopSelfIfIdle(startId);
+                if (resumed == 0) {
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "onStart: no pending messages. Stopping service.");
+                    }
+                    stopSelfIfIdle(startId);
+                }
             }
         } else {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -265,14 +291,116 @@ public class TransactionService extends Service implements Observer {
             }
             // For launching NotificationTransaction and test purpose.
             TransactionBundle args = new TransactionBundle(intent.getExtras());
-            launchTransaction(startId, args, noNetwork);
+            String[] uris = args.getUris();
+            if ((uris != null) && !noNetwork) {
+                // Several notifications received in one burst.
+                for (String uri : uris) {
+                    // FIXME: We use the same startId for all MMs.
+                    launchTransaction(startId,
+                            new TransactionBundle(args.getTransactionType(), uri), false);
+                }
+            } else {
+                launchTransaction(startId, args, noNetwork);
+            }
         }
         return Service.START_NOT_STICKY;
     }
 
+    /**
+     * Start again the transactions the journal says an earlier process was
+     * killed in the middle of. A download resumes where it stopped. Only
+     * the first call in a process finds any.
+     * @return the number of transactions launched.
+     */
+    private int resumeInterruptedTransactions(int startId) {
+        List<TransactionJournal.Entry> entries =
+                TransactionJournal.getInstance(this).takeInterrupted();
+        for (TransactionJournal.Entry entry : entries) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "resume interrupted transaction: type=" + entry.getType()
+                        + " uri=" + entry.getUri());
+            }
+            launchTransaction(startId,
+                    new TransactionBundle(entry.getType(), entry.getUri()), false);
+        }
+        return entries.size();
+    }
+
+    /**
+     * Launch the transaction for the PendingMessages row the cursor is
+     * positioned on, unless it is a download the user has to start.
+     * @return whether a transaction was launched.
+     */
+    private boolean launchPendingMessage(int startId, Cursor cursor, int transactionType) {
+        switch (transactionType) {
+            case -1:
+                return false;
+            case Transaction.RETRIEVE_TRANSACTION:
+                // If it's a transiently failed transaction,
+                // we should retry it in spite of current
+                // downloading mode.
+                int failureType = cursor.getInt(
+                        cursor.getColumnIndexOrThrow(
+                                PendingMessages.ERROR_TYPE));
+                if (!isTransientFailure(failureType)) {
+                    return false;
+                }
+                // fall-through
+            default:
+                Uri uri = ContentUris.withAppendedId(
+                        Mms.CONTENT_URI,
+                        cursor.getLong(cursor.getColumnIndexOrThrow(PendingMessages.MSG_ID)));
+                TransactionBundle args = new TransactionBundle(
+                        transactionType, uri.toString());
+                // FIXME: We use the same startId for all MMs.
+                launchTransaction(startId, args, false);
+                return true;
+        }
+    }
+
+    /**
+     * Launch every message of the PendingMessages table that is due by now,
+     * so that all of them go out while we hold the MMS APN. Duplicates of
+     * transactions we already know about are dropped by processTransaction().
+     * @return the number of transactions launched.
+     */
+    private int launchDuePendingMessages() {
+        RetryScheduler.getInstance(this).flush();
+        Cursor cursor = PduPersister.getPduPersister(this).getPendingMessages(
+                System.currentTimeMillis());
+        if (cursor == null) {
+            return 0;
+        }
+
+        try {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "launchDuePendingMessages: count=" + cursor.getCount());
+            }
+
+            int count = 0;
+            int columnIndexOfMsgType = cursor.getColumnIndexOrThrow(PendingMessages.MSG_TYPE);
+            while (cursor.moveToNext()) {
+                int transactionType = getTransactionType(cursor.getInt(columnIndexOfMsgType));
+                if (launchPendingMessage(mLastStartId, cursor, transactionType)) {
+                    count++;
+                }
+            }
+
+            if (AckQueue.getInstance(this).hasPending()) {
+                // Acks an earlier lease couldn't send.
+                launchTransaction(mLastStartId,
+                        new TransactionBundle(Transaction.ACK_TRANSACTION), false);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void stopSelfIfIdle(int startId) {
         synchronized (mProcessing) {
-            if (mProcessing.isEmpty() && mPending.isEmpty()) {
+            if (mProcessing.isEmpty() && mPending.isEmpty() && !mAckRequested) {
                 if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                     Log.v(TAG, "stopSelfIfIdle: STOP!");
                 }
@@ -359,6 +487,13 @@ public class TransactionService extends Service implements Observer {
         mConnectivityListener = null;
 
         mServiceHandler.sendEmptyMessage(EVENT_QUIT);
+
+        // Transactions already handed to the executor still run to completion.
+        mExecutor.shutdown();
+        if (mDispatcher != null) {
+            // Later notifications are made on the transaction threads.
+            mDispatcher.shutdown();
+        }
     }
 
     @Override
@@ -366,6 +501,19 @@ public class TransactionService extends Service implements Observer {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (mProcessing) {
+            mProcessing.dump(writer, "Processing");
+            mPending.dump(writer, "Pending");
+        }
+        mLeaseStats.dump(writer);
+        writer.println("Acks: " + AckQueue.getInstance(this).getStats());
+        writer.println("Journal: " + TransactionJournal.getInstance(this).getStats());
+        writer.println("APN settings: " + TransactionSettings.getCacheStats());
+        TransactionMetrics.getInstance().dump(writer);
+    }
+
     /**
      * Handle status change of Transaction (The Observable).
      */
@@ -378,6 +526,13 @@ public class TransactionService extends Service implements Observer {
         }
 
         try {
+            TransactionJournal.getInstance(this).finished(transaction.getIdentity());
+
+            // A failed AckTransaction left its acks for the next lease.
+            boolean sendAcks = AckQueue.getInstance(this).hasPending()
+                    && !((transaction.getType() == Transaction.ACK_TRANSACTION)
+                            && (transaction.getState().getState() == TransactionState.FAILED));
+
             synchronized (mProcessing) {
                 mProcessing.remove(transaction);
                 if (mPending.size() > 0) {
@@ -388,8 +543,19 @@ public class TransactionService extends Service implements Observer {
                             EVENT_HANDLE_NEXT_PENDING_TRANSACTION,
                             transaction.getConnectionSettings());
                     mServiceHandler.sendMessage(msg);
-                }
-                else {
+                } else if (sendAcks) {
+                    // Keep the lease until the acks queued by the finished
+                    // transactions are sent. Requested right here so that the
+                    // service isn't stopped as idle meanwhile.
+                    if (!mAckRequested) {
+                        mAckRequested = true;
+                        Message msg = mServiceHandler.obtainMessage(EVENT_SEND_ACKS,
+                                serviceId, 0, transaction.getConnectionSettings());
+                        mServiceHandler.sendMessage(msg);
+                    }
+                } else if (mProcessing.isEmpty() && !mAckRequested) {
+                    // The rest of the batch may still be queued on the executor
+                    // or held by the download scheduler; they share the lease.
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "update: endMmsConnectivity");
                     }
@@ -409,13 +575,14 @@ public class TransactionService extends Service implements Observer {
                     }
 
                     intent.putExtra(STATE_URI, state.getContentUri());
+                    mLeaseStats.onTransactionSucceeded();
 
                     // Notify user in the system-wide notification area.
                     switch (transaction.getType()) {
                         case Transaction.NOTIFICATION_TRANSACTION:
                         case Transaction.RETRIEVE_TRANSACTION:
-                            // We're already in a non-UI thread called from
-                            // NotificationTransacation.run(), so ok to block here.
+                            // We're already in a non-UI thread, the dispatcher
+                            // or a transaction thread, so ok to block here.
                             MessagingNotification.blockingUpdateNewMessageIndicator(this, true,
                                     false);
                             MessagingNotification.updateDownloadFailedNotification(this);
@@ -446,7 +613,9 @@ public class TransactionService extends Service implements Observer {
         } finally {
             transaction.detach(this);
             MmsSystemEventReceiver.unRegisterForConnectionStateChanges(getApplicationContext());
-            stopSelf(serviceId);
+            // Several transactions of a batch may share a start id; don't let
+            // the first one to finish stop the service under the others.
+            stopSelfIfIdle(serviceId);
         }
     }
 
@@ -485,8 +654,19 @@ public class TransactionService extends Service implements Observer {
 
         switch (result) {
             case Phone.APN_ALREADY_ACTIVE:
+                mLeaseHeld = true;
+                mMmsConnectivityActive = true;
+                mConnectRequestTime = 0;
+                acquireWakeLock();
+                mLeaseStats.onLeaseStarted();
+                return result;
             case Phone.APN_REQUEST_STARTED:
+                mLeaseHeld = true;
+                if (mConnectRequestTime == 0) {
+                    mConnectRequestTime = TransactionMetrics.now();
+                }
                 acquireWakeLock();
+                mLeaseStats.onLeaseStarted();
                 return result;
         }
 
@@ -501,6 +681,15 @@ public class TransactionService extends Service implements Observer {
 
             // cancel timer for renewal of lease
             mServiceHandler.removeMessages(EVENT_CONTINUE_MMS_CONNECTIVITY);
+            mLeaseHeld = false;
+            mMmsConnectivityActive = false;
+            mConnectRequestTime = 0;
+            mLeaseStats.onLeaseEnded();
+            RouteCache.getInstance().onLeaseEnded();
+
+            // Don't keep sockets to the MMSC open once the APN is gone.
+            HttpConnectionPool.getInstance().endLease();
+
             if (mConnMgr != null) {
                 mConnMgr.stopUsingNetworkFeature(
                         ConnectivityManager.TYPE_MOBILE,
@@ -511,6 +700,55 @@ public class TransactionService extends Service implements Observer {
         }
     }
 
+    /**
+     * Keeps track of how long the MMS APN is held and how many transactions
+     * complete per lease, which gives the radio-on time per delivered MMS.
+     */
+    private static class LeaseStats {
+        private long mLeaseStartTime;   // 0 when no lease is held
+        private int mLeaseSucceeded;
+        private int mLeaseCount;
+        private long mTotalLeaseTime;
+        private int mTotalSucceeded;
+
+        synchronized void onLeaseStarted() {
+            if (mLeaseStartTime == 0) {
+                mLeaseStartTime = SystemClock.elapsedRealtime();
+                mLeaseSucceeded = 0;
+            }
+        }
+
+        synchronized void onTransactionSucceeded() {
+            mLeaseSucceeded++;
+        }
+
+        synchronized void onLeaseEnded() {
+            if (mLeaseStartTime == 0) {
+                return;
+            }
+            long duration = SystemClock.elapsedRealtime() - mLeaseStartTime;
+            mLeaseStartTime = 0;
+            mLeaseCount++;
+            mTotalLeaseTime += duration;
+            mTotalSucceeded += mLeaseSucceeded;
+
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.DEBUG)) {
+                Log.d(TAG, "MMS lease held " + duration + "ms for " + mLeaseSucceeded
+                        + " transactions (" + perTransaction(duration, mLeaseSucceeded) + ")");
+            }
+        }
+
+        private static String perTransaction(long time, int count) {
+            return (count == 0) ? "none delivered" : ((time / count) + "ms each");
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.println("Leases: " + mLeaseCount + ", radio on " + mTotalLeaseTime
+                    + "ms for " + mTotalSucceeded + " transactions ("
+                    + perTransaction(mTotalLeaseTime, mTotalSucceeded) + ")");
+        }
+    }
+
     private final class ServiceHandler extends Handler {
         public ServiceHandler(Looper looper) {
             super(looper);
@@ -560,8 +798,7 @@ public class TransactionService extends Service implements Observer {
                     }
 
                     // Restart timer
-                    sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
-                                       APN_EXTENSION_WAIT);
+                    scheduleLeaseRenewal();
                     return;
 
                 case EVENT_DATA_STATE_CHANGED:
@@ -592,10 +829,12 @@ public class TransactionService extends Service implements Observer {
                         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                             Log.v(TAG, "   TYPE_MOBILE_MMS not connected, bail");
                         }
+                        mMmsConnectivityActive = false;
+                        RouteCache.getInstance().onLeaseEnded();
                         return;
                     }
 
-                    TransactionSettings settings = new TransactionSettings(
+                    TransactionSettings settings = TransactionSettings.forApn(
                             TransactionService.this, info.getExtraInfo());
 
                     // If this APN doesn't have an MMSC, wait for one that does.
@@ -606,10 +845,25 @@ public class TransactionService extends Service implements Observer {
                         return;
                     }
 
+                    // Someone else may have brought the APN up; only skip
+                    // beginMmsConnectivity() while we hold the feature.
+                    mMmsConnectivityActive = mLeaseHeld;
+                    RouteCache.getInstance().onApnConnected(info.getExtraInfo());
+                    long requested = mConnectRequestTime;
+                    if (requested != 0) {
+                        mConnectRequestTime = 0;
+                        TransactionMetrics.getInstance().record(TransactionMetrics.PHASE_CONNECT,
+                                TransactionMetrics.TYPE_NONE, requested);
+                    }
+
                     // Set a timer to keep renewing our "lease" on the MMS connection
-                    sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
-                                       APN_EXTENSION_WAIT);
-                    processPendingTransaction(transaction, settings);
+                    scheduleLeaseRenewal();
+
+                    // Now that we have the APN, go through everything that is
+                    // waiting for it in one pass: the transactions deferred in
+                    // mPending and whatever is due in the PendingMessages table.
+                    int launched = launchDuePendingMessages();
+                    processPendingTransaction(transaction, settings, launched == 0);
                     return;
 
                 case EVENT_TRANSACTION_REQUEST:
@@ -625,7 +879,7 @@ public class TransactionService extends Service implements Observer {
                             transactionSettings = new TransactionSettings(
                                     mmsc, args.getProxyAddress(), args.getProxyPort());
                         } else {
-                            transactionSettings = new TransactionSettings(
+                            transactionSettings = TransactionSettings.forApn(
                                                     TransactionService.this, null);
                         }
 
@@ -677,13 +931,27 @@ public class TransactionService extends Service implements Observer {
                                         TransactionService.this, serviceId,
                                         transactionSettings, args.getUri());
                                 break;
+                            case Transaction.ACK_TRANSACTION:
+                                transaction = new AckTransaction(
+                                        TransactionService.this, serviceId,
+                                        transactionSettings);
+                                break;
                             default:
                                 Log.w(TAG, "Invalid transaction type: " + serviceId);
                                 transaction = null;
                                 return;
                         }
 
+                        // Journaled before it can finish. Acks are kept by the AckQueue.
+                        if ((args.getUri() != null)
+                                && (transactionType != Transaction.ACK_TRANSACTION)) {
+                            TransactionJournal.getInstance(TransactionService.this).started(
+                                    transaction.getIdentity(), transactionType, args.getUri());
+                        }
+
                         if (!processTransaction(transaction)) {
+                            TransactionJournal.getInstance(TransactionService.this).finished(
+                                    transaction.getIdentity());
                             transaction = null;
                             return;
                         }
@@ -696,11 +964,11 @@ public class TransactionService extends Service implements Observer {
 
                         if (transaction != null) {
                             try {
+                                TransactionJournal.getInstance(TransactionService.this).finished(
+                                        transaction.getIdentity());
                                 transaction.detach(TransactionService.this);
-                                if (mProcessing.contains(transaction)) {
-                                    synchronized (mProcessing) {
-                                        mProcessing.remove(transaction);
-                                    }
+                                synchronized (mProcessing) {
+                                    mProcessing.remove(transaction);
                                 }
                             } catch (Throwable t) {
                                 Log.e(TAG, "Unexpected Throwable.", t);
@@ -721,7 +989,10 @@ public class TransactionService extends Service implements Observer {
                     }
                     return;
                 case EVENT_HANDLE_NEXT_PENDING_TRANSACTION:
-                    processPendingTransaction(transaction, (TransactionSettings) msg.obj);
+                    processPendingTransaction(transaction, (TransactionSettings) msg.obj, true);
+                    return;
+                case EVENT_SEND_ACKS:
+                    launchAckTransaction(msg.arg1, (TransactionSettings) msg.obj);
                     return;
                 default:
                     Log.w(TAG, "what=" + msg.what);
@@ -729,22 +1000,72 @@ public class TransactionService extends Service implements Observer {
             }
         }
 
+        /**
+         * Start the timer that renews our "lease" on the MMS connection unless
+         * it is already running. There is only ever one such timer, however
+         * many transactions run.
+         */
+        private void scheduleLeaseRenewal() {
+            if (!hasMessages(EVENT_CONTINUE_MMS_CONNECTIVITY)) {
+                sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
+                                   APN_EXTENSION_WAIT);
+            }
+        }
+
+        /**
+         * Start an AckTransaction to send the queued acknowledgements, unless
+         * one is already running; it sends whatever is queued until it is done.
+         */
+        private void launchAckTransaction(int serviceId, TransactionSettings settings) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "launchAckTransaction: "
+                        + AckQueue.getInstance(TransactionService.this).getStats());
+            }
+            try {
+                processTransaction(new AckTransaction(TransactionService.this, serviceId,
+                        settings));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot send queued acks: " + e.getMessage());
+            } finally {
+                synchronized (mProcessing) {
+                    mAckRequested = false;
+                    if (mProcessing.isEmpty() && mPending.isEmpty()) {
+                        endMmsConnectivity();
+                    }
+                }
+                stopSelfIfIdle(serviceId);
+            }
+        }
+
+        /**
+         * Start every transaction that was deferred while waiting for the
+         * MMS APN, in one pass.
+         * @param endIfIdle whether to give up the APN again if it turns out
+         * there was nothing to do.
+         */
         private void processPendingTransaction(Transaction transaction,
-                                               TransactionSettings settings) {
+                                               TransactionSettings settings,
+                                               boolean endIfIdle) {
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "processPendingTxn: transaction=" + transaction);
             }
 
-            int numProcessTransaction = 0;
+            // Only look at what is queued right now: processTransaction()
+            // queues a transaction again if the APN went away meanwhile.
+            int numPending;
             synchronized (mProcessing) {
-                if (mPending.size() != 0) {
-                    transaction = mPending.remove(0);
-                }
-                numProcessTransaction = mProcessing.size();
+                numPending = mPending.size();
             }
 
-            if (transaction != null) {
+            for (int i = 0; i < numPending; i++) {
+                synchronized (mProcessing) {
+                    transaction = mPending.poll();
+                }
+                if (transaction == null) {
+                    break;
+                }
+
                 if (settings != null) {
                     transaction.setConnectionSettings(settings);
                 }
@@ -765,18 +1086,22 @@ public class TransactionService extends Service implements Observer {
                                     + transaction);
                         }
                     } else {
-                        transaction = null;
                         stopSelf(serviceId);
                     }
                 } catch (IOException e) {
                     Log.w(TAG, e.getMessage(), e);
                 }
-            } else {
-                if (numProcessTransaction == 0) {
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "processPendingTxn: no more transaction, endMmsConnectivity");
+            }
+
+            if (endIfIdle) {
+                synchronized (mProcessing) {
+                    if (mProcessing.isEmpty() && mPending.isEmpty()) {
+                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                            Log.v(TAG, "processPendingTxn: no more transaction, "
+                                    + "endMmsConnectivity");
+                        }
+                        endMmsConnectivity();
                     }
-                    endMmsConnectivity();
                 }
             }
         }
@@ -792,22 +1117,18 @@ public class TransactionService extends Service implements Observer {
         private boolean processTransaction(Transaction transaction) throws IOException {
             // Check if transaction already processing
             synchronized (mProcessing) {
-                for (Transaction t : mPending) {
-                    if (t.isEquivalent(transaction)) {
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Transaction already pending: " +
-                                    transaction.getServiceId());
-                        }
-                        return true;
+                if (mPending.containsEquivalent(transaction)) {
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "Transaction already pending: " +
+                                transaction.getServiceId());
                     }
+                    return true;
                 }
-                for (Transaction t : mProcessing) {
-                    if (t.isEquivalent(transaction)) {
-                        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Duplicated transaction: " + transaction.getServiceId());
-                        }
-                        return true;
+                if (mProcessing.containsEquivalent(transaction)) {
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "Duplicated transaction: " + transaction.getServiceId());
                     }
+                    return true;
                 }
 
                 /*
@@ -819,7 +1140,8 @@ public class TransactionService extends Service implements Observer {
                 if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                     Log.v(TAG, "processTransaction: call beginMmsConnectivity...");
                 }
-                int connectivityResult = beginMmsConnectivity();
+                int connectivityResult = mMmsConnectivityActive
+                        ? Phone.APN_ALREADY_ACTIVE : beginMmsConnectivity();
                 if (connectivityResult == Phone.APN_REQUEST_STARTED) {
                     mPending.add(transaction);
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -836,16 +1158,16 @@ public class TransactionService extends Service implements Observer {
             }
 
             // Set a timer to keep renewing our "lease" on the MMS connection
-            sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
-                               APN_EXTENSION_WAIT);
+            scheduleLeaseRenewal();
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "processTransaction: starting transaction " + transaction);
             }
 
-            // Attach to transaction and process it
+            // Attach to transaction and queue it on the worker threads
+            transaction.setDispatchExecutor(mDispatcher);
             transaction.attach(TransactionService.this);
-            transaction.process();
+            mExecutor.execute(transaction);
             return true;
         }
     }
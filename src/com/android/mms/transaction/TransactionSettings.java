@@ -17,6 +17,9 @@
 
 package com.android.mms.transaction;
 
+import com.android.mms.LogTag;
+
+import android.database.ContentObserver;
 import android.database.sqlite.SqliteWrapper;
 
 import android.content.Context;
@@ -28,11 +31,15 @@ import android.text.TextUtils;
 import android.util.Config;
 import android.util.Log;
 
+import java.util.HashMap;
 
 /**
  * Container of transaction settings. Instances of this class are contained
  * within Transaction instances to allow overriding of the default APN
  * settings or of the MMS Client.
+ *
+ * Settings read from the APN table are cached for the process by
+ * {@link #forApn}, until the carriers table changes.
  */
 public class TransactionSettings {
     private static final String TAG = "TransactionSettings";
@@ -42,6 +49,17 @@ public class TransactionSettings {
     private String mServiceCenter;
     private String mProxyAddress;
     private int mProxyPort = -1;
+    // Whether the APN table could be read.
+    private boolean mLoaded;
+
+    // Settings by APN name, "" for the current APN of any name.
+    private static final HashMap<String, TransactionSettings> sCache =
+            new HashMap<String, TransactionSettings>();
+    // Guarded by sCache; bumped whenever the carriers table changes.
+    private static int sGeneration;
+    private static ContentObserver sCarriersObserver;
+    private static int sHits;
+    private static int sMisses;
 
     private static final String[] APN_PROJECTION = {
             Telephony.Carriers.TYPE,            // 0
@@ -60,17 +78,18 @@ public class TransactionSettings {
      * @param context The context of the MMS Client
      */
     public TransactionSettings(Context context, String apnName) {
-        String selection = (apnName != null)?
-                Telephony.Carriers.APN + "='"+apnName+"'": null;
+        String selection = (apnName != null) ? Telephony.Carriers.APN + "=?" : null;
+        String[] selectionArgs = (apnName != null) ? new String[] { apnName } : null;
 
         Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
                             Uri.withAppendedPath(Telephony.Carriers.CONTENT_URI, "current"),
-                            APN_PROJECTION, selection, null, null);
+                            APN_PROJECTION, selection, selectionArgs, null);
 
         if (cursor == null) {
             Log.e(TAG, "Apn is not found in Database!");
             return;
         }
+        mLoaded = true;
 
         boolean sawValidApn = false;
         try {
@@ -103,6 +122,65 @@ public class TransactionSettings {
         }
     }
 
+    /**
+     * Returns the settings of an APN like the constructor, from the cache
+     * if they were read before.
+     *
+     * @param context The context of the MMS Client
+     * @param apnName The name of the APN, or null for the current MMS APN.
+     */
+    public static TransactionSettings forApn(Context context, String apnName) {
+        String key = (apnName != null) ? apnName : "";
+        int generation;
+        synchronized (sCache) {
+            if (sCarriersObserver == null) {
+                registerCarriersObserver(context.getApplicationContext());
+            }
+            TransactionSettings settings = sCache.get(key);
+            if (settings != null) {
+                sHits++;
+                return settings;
+            }
+            sMisses++;
+            generation = sGeneration;
+        }
+
+        TransactionSettings settings = new TransactionSettings(context, apnName);
+        synchronized (sCache) {
+            // Not if the table changed while it was read, or couldn't be read.
+            if (settings.mLoaded && (generation == sGeneration)) {
+                sCache.put(key, settings);
+            }
+        }
+        return settings;
+    }
+
+    private static void registerCarriersObserver(Context context) {
+        sCarriersObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                    Log.v(TAG, "APN settings changed");
+                }
+                synchronized (sCache) {
+                    sCache.clear();
+                    sGeneration++;
+                }
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                Telephony.Carriers.CONTENT_URI, true, sCarriersObserver);
+    }
+
+    /**
+     * Returns a one-line summary of the cache, suitable for logging.
+     */
+    public static String getCacheStats() {
+        synchronized (sCache) {
+            return "cached=" + sCache.size() + " hits=" + sHits + " misses=" + sMisses;
+        }
+    }
+
     /**
      * Constructor that overrides the default settings of the MMS Client.
      *
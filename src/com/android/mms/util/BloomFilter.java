@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+/**
+ * A fixed size Bloom filter of strings. {@link #mightContain} never returns
+ * false for a string that was added, and returns true for a string that
+ * wasn't only with a small probability that grows as the filter fills up.
+ * Not thread safe.
+ */
+public class BloomFilter {
+    private final long[] mBits;
+    private final int mBitCount;
+    private final int mHashCount;
+    private int mSize;
+
+    /**
+     * @param bitCount The number of bits in the filter, rounded up to a
+     *        multiple of 64.
+     * @param hashCount The number of bits set for each string.
+     */
+    public BloomFilter(int bitCount, int hashCount) {
+        if ((bitCount <= 0) || (hashCount <= 0)) {
+            throw new IllegalArgumentException("bitCount and hashCount must be positive");
+        }
+        mBits = new long[(bitCount + 63) / 64];
+        mBitCount = mBits.length * 64;
+        mHashCount = hashCount;
+    }
+
+    public void add(String value) {
+        int h1 = value.hashCode();
+        int h2 = secondaryHash(value);
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = index(h1 + i * h2);
+            mBits[bit >>> 6] |= 1L << (bit & 63);
+        }
+        mSize++;
+    }
+
+    public boolean mightContain(String value) {
+        int h1 = value.hashCode();
+        int h2 = secondaryHash(value);
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = index(h1 + i * h2);
+            if ((mBits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of strings added so far, counting repeats.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mBits.length; i++) {
+            mBits[i] = 0;
+        }
+        mSize = 0;
+    }
+
+    private int index(int hash) {
+        return (hash & 0x7fffffff) % mBitCount;
+    }
+
+    // FNV-1a, which is independent enough of String.hashCode() for double
+    // hashing. Forced odd so that successive probes don't repeat early.
+    private static int secondaryHash(String value) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+}
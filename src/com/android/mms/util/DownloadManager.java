@@ -29,6 +29,7 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.TelephonyProperties;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -207,16 +208,7 @@ public class DownloadManager {
 
         // Notify user if downloading permanently failed.
         if (state == STATE_PERMANENT_FAILURE) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    try {
-                        Toast.makeText(mContext, getMessage(uri),
-                                Toast.LENGTH_LONG).show();
-                    } catch (MmsException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                    }
-                }
-            });
+            showPermanentFailureToast(uri);
         } else if (!mAutoDownload) {
             state |= DEFERRED_MASK;
         }
@@ -229,6 +221,47 @@ public class DownloadManager {
                     uri, values, null, null);
     }
 
+    /**
+     * Returns an operation that stores a transient or permanent download
+     * failure the way {@link #markState} does, for callers that update many
+     * notifications in one batch. The user is not notified; call
+     * {@link #showPermanentFailureToast} for that.
+     */
+    public ContentProviderOperation newMarkStateOperation(Uri uri, int state) {
+        if ((state != STATE_PERMANENT_FAILURE) && !mAutoDownload) {
+            state |= DEFERRED_MASK;
+        }
+        return ContentProviderOperation.newUpdate(uri)
+                .withValue(Mms.STATUS, state)
+                .build();
+    }
+
+    public void showPermanentFailureToast(final Uri uri) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    Toast.makeText(mContext, getMessage(uri),
+                            Toast.LENGTH_LONG).show();
+                } catch (MmsException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tell the user that several messages couldn't be downloaded.
+     */
+    public void showPermanentFailureToast(final int count) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                Toast.makeText(mContext,
+                        mContext.getString(R.string.dl_failure_notification_multiple, count),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public void showErrorCodeToast(int errorStr) {
         final int errStr = errorStr;
         mHandler.post(new Runnable() {
@@ -27,6 +27,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
@@ -35,8 +39,19 @@ import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Conversations;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
 /**
  * The recycler is responsible for deleting old messages.
+ *
+ * It keeps the number of messages of every thread it has seen, counted once
+ * for all threads and then updated as messages are stored and deleted, so
+ * that a new message only costs a lookup unless its thread is over the
+ * limit. The deleting is done on a thread of its own, oldest messages first
+ * in small batches, for a limited time at once.
  */
 public abstract class Recycler {
     private static final boolean LOCAL_DEBUG = false;
@@ -45,8 +60,26 @@ public abstract class Recycler {
     // Default preference values
     private static final boolean DEFAULT_AUTO_DELETE  = false;
 
+    // Messages deleted at once, so that the provider isn't held up for long.
+    private static final int DELETE_BATCH = 100;
+    // How long one run may delete for, and how long to wait before the next one.
+    private static final long RUN_BUDGET = 200;
+    private static final long RUN_INTERVAL = 1000;
+
     private static SmsRecycler sSmsRecycler;
     private static MmsRecycler sMmsRecycler;
+    private static Handler sHandler;
+
+    // The number of messages by thread, as far as we know; never fewer than the unlocked ones.
+    private final HashMap<Long, Integer> mCounts = new HashMap<Long, Integer>();
+    private boolean mCountsSeeded;
+    // The threads that may be over the limit, in the order they got there.
+    private final LinkedHashSet<Long> mOverLimit = new LinkedHashSet<Long>();
+    private boolean mScheduled;
+
+    private int mRuns;
+    private int mReclaimed;
+    private long mRecycleTime;
 
     public static SmsRecycler getSmsRecycler() {
         if (sSmsRecycler == null) {
@@ -69,6 +102,9 @@ public abstract class Recycler {
         return smsRecycler.anyThreadOverLimit(context) || mmsRecycler.anyThreadOverLimit(context);
     }
 
+    /**
+     * Delete the messages over the limit in all threads, in the background.
+     */
     public void deleteOldMessages(Context context) {
         if (LOCAL_DEBUG) {
             Log.v(TAG, "Recycler.deleteOldMessages this: " + this);
@@ -77,28 +113,277 @@ public abstract class Recycler {
             return;
         }
 
-        Cursor cursor = getAllThreads(context);
-        try {
-            int limit = getMessageLimit(context);
-            while (cursor.moveToNext()) {
-                long threadId = getThreadId(cursor);
-                deleteMessagesForThread(context, threadId, limit);
+        seedCounts(context);
+        int limit = getMessageLimit(context);
+        synchronized (this) {
+            for (Map.Entry<Long, Integer> entry : mCounts.entrySet()) {
+                if (entry.getValue() > limit) {
+                    mOverLimit.add(entry.getKey());
+                }
             }
-        } finally {
-            cursor.close();
         }
+        schedule(context, 0);
     }
 
     public void deleteOldMessagesByThreadId(Context context, long threadId) {
+        deleteOldMessagesByThreadId(context, threadId, 1);
+    }
+
+    /**
+     * Delete the messages over the limit in a thread, in the background.
+     *
+     * @param added The number of messages just stored in the thread.
+     */
+    public void deleteOldMessagesByThreadId(Context context, long threadId, int added) {
         if (LOCAL_DEBUG) {
             Log.v(TAG, "Recycler.deleteOldMessagesByThreadId this: " + this +
                     " threadId: " + threadId);
         }
+        Integer count;
+        synchronized (this) {
+            count = mCounts.get(threadId);
+            if (count != null) {
+                count += added;
+                mCounts.put(threadId, count);
+            }
+        }
         if (!isAutoDeleteEnabled(context)) {
             return;
         }
 
-        deleteMessagesForThread(context, threadId, getMessageLimit(context));
+        // Threads we don't know the count of yet are counted by recycling them.
+        if ((count == null) || (count > getMessageLimit(context))) {
+            synchronized (this) {
+                mOverLimit.add(threadId);
+            }
+            schedule(context, 0);
+        }
+    }
+
+    /**
+     * Returns the number of messages deleted since process start.
+     */
+    public synchronized int getReclaimedCount() {
+        return mReclaimed;
+    }
+
+    public synchronized String getStats() {
+        return "threads=" + mCounts.size()
+                + " overLimit=" + mOverLimit.size()
+                + " runs=" + mRuns
+                + " reclaimed=" + mReclaimed
+                + " time=" + mRecycleTime + "ms";
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    private void schedule(Context context, long delay) {
+        synchronized (this) {
+            if (mScheduled || mOverLimit.isEmpty()) {
+                return;
+            }
+            mScheduled = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        getHandler().postDelayed(new Runnable() {
+            public void run() {
+                synchronized (Recycler.this) {
+                    mScheduled = false;
+                }
+                recycle(appContext);
+                schedule(appContext, RUN_INTERVAL);
+            }
+        }, delay);
+    }
+
+    /**
+     * Delete messages of the threads over the limit for up to RUN_BUDGET.
+     */
+    private void recycle(Context context) {
+        if (!isAutoDeleteEnabled(context)) {
+            synchronized (this) {
+                mOverLimit.clear();
+            }
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        long deadline = start + RUN_BUDGET;
+        int limit = getMessageLimit(context);
+        int reclaimed = 0;
+        int threads = 0;
+        while (SystemClock.uptimeMillis() < deadline) {
+            long threadId;
+            Integer counted;
+            synchronized (this) {
+                Iterator<Long> it = mOverLimit.iterator();
+                if (!it.hasNext()) {
+                    break;
+                }
+                threadId = it.next();
+                it.remove();
+                counted = mCounts.get(threadId);
+            }
+
+            int[] result = deleteMessagesForThread(context, threadId, limit, deadline);
+            if (result == null) {
+                continue;
+            }
+            int remaining = result[0];
+            int deleted = result[1];
+            reclaimed += deleted;
+            threads++;
+            synchronized (this) {
+                // Add what was stored meanwhile.
+                Integer count = mCounts.get(threadId);
+                if ((count != null) && (counted != null)) {
+                    remaining += count - counted;
+                }
+                mCounts.put(threadId, remaining);
+                if ((remaining > limit) && (deleted > 0)) {
+                    // Out of time, the rest is for the next run. A thread nothing
+                    // could be deleted from waits for its next new message.
+                    mOverLimit.add(threadId);
+                }
+            }
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mRuns++;
+            mReclaimed += reclaimed;
+            mRecycleTime += elapsed;
+        }
+        if (LOCAL_DEBUG || ((reclaimed > 0) && Log.isLoggable(TAG, Log.VERBOSE))) {
+            Log.v(TAG, getClass().getSimpleName() + " reclaimed " + reclaimed
+                    + " messages from " + threads + " threads in " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * Delete the oldest unlocked messages of a thread past the newest
+     * {@code keep}, a batch at a time, until the deadline.
+     *
+     * @return The number of unlocked messages left and the number deleted,
+     *         or null if the thread couldn't be read.
+     */
+    private int[] deleteMessagesForThread(Context context, long threadId, int keep,
+            long deadline) {
+        if (LOCAL_DEBUG) {
+            Log.v(TAG, "deleteMessagesForThread " + this + " threadId: " + threadId);
+        }
+        // The ids to delete, oldest first. By id, since messages past the
+        // limit may share their date with ones that are kept.
+        long[] ids;
+        int count;
+        Cursor cursor = queryUnlockedMessageIds(context, threadId);
+        if (cursor == null) {
+            Log.e(TAG, "deleteMessagesForThread got back null cursor");
+            return null;
+        }
+        try {
+            count = cursor.getCount();
+            int numberToDelete = count - keep;
+            if (LOCAL_DEBUG) {
+                Log.v(TAG, "deleteMessagesForThread keep: " + keep +
+                        " count: " + count +
+                        " numberToDelete: " + numberToDelete);
+            }
+            if (numberToDelete <= 0) {
+                return new int[] { count, 0 };
+            }
+            ids = new long[numberToDelete];
+            for (int i = 0; i < numberToDelete; i++) {
+                cursor.moveToPosition(count - 1 - i);
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int deleted = 0;
+        for (int i = 0; i < ids.length; i += DELETE_BATCH) {
+            if ((i > 0) && (SystemClock.uptimeMillis() >= deadline)) {
+                break;
+            }
+            StringBuilder idList = new StringBuilder();
+            for (int j = i; j < Math.min(ids.length, i + DELETE_BATCH); j++) {
+                if (j > i) {
+                    idList.append(',');
+                }
+                idList.append(ids[j]);
+            }
+            deleted += deleteMessages(context, threadId, idList.toString());
+        }
+        if (LOCAL_DEBUG) {
+            Log.v(TAG, "deleteMessagesForThread cntDeleted: " + deleted);
+        }
+        return new int[] { count - deleted, deleted };
+    }
+
+    /**
+     * Count the messages of every thread, once.
+     */
+    private void seedCounts(Context context) {
+        synchronized (this) {
+            if (mCountsSeeded) {
+                return;
+            }
+        }
+        HashMap<Long, Integer> counts = new HashMap<Long, Integer>();
+        Cursor cursor = getAllThreads(context);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(getThreadId(cursor), getMessageCount(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (!mCountsSeeded) {
+                // Counts kept since are at least as recent.
+                counts.putAll(mCounts);
+                mCounts.clear();
+                mCounts.putAll(counts);
+                mCountsSeeded = true;
+            }
+        }
+    }
+
+    protected boolean anyThreadOverLimit(Context context) {
+        seedCounts(context);
+        int limit = getMessageLimit(context);
+        HashMap<Long, Integer> counts;
+        synchronized (this) {
+            counts = new HashMap<Long, Integer>(mCounts);
+        }
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() < limit) {
+                continue;
+            }
+            // The count includes locked messages; only the unlocked ones matter.
+            Cursor cursor = queryUnlockedMessageIds(context, entry.getKey());
+            if (cursor != null) {
+                try {
+                    if (cursor.getCount() >= limit) {
+                        return true;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return false;
     }
 
     public static boolean isAutoDeleteEnabled(Context context) {
@@ -121,15 +406,28 @@ public abstract class Recycler {
 
     abstract protected long getThreadId(Cursor cursor);
 
+    abstract protected int getMessageCount(Cursor cursor);
+
     abstract protected Cursor getAllThreads(Context context);
 
-    abstract protected void deleteMessagesForThread(Context context, long threadId, int keep);
+    /**
+     * Returns the ids of the unlocked messages of a thread, newest first.
+     */
+    abstract protected Cursor queryUnlockedMessageIds(Context context, long threadId);
 
-    abstract protected void dumpMessage(Cursor cursor, Context context);
+    /**
+     * Delete unlocked messages of a thread.
+     *
+     * @param ids The comma separated ids of the messages.
+     * @return The number of messages deleted.
+     */
+    abstract protected int deleteMessages(Context context, long threadId, String ids);
 
-    abstract protected boolean anyThreadOverLimit(Context context);
+    abstract protected void dumpMessage(Cursor cursor, Context context);
 
     public static class SmsRecycler extends Recycler {
+        private static final String[] ID_PROJECTION = { BaseColumns._ID };
+
         private static final String[] ALL_SMS_THREADS_PROJECTION = {
             Telephony.Sms.Conversations.THREAD_ID,
             Telephony.Sms.Conversations.MESSAGE_COUNT
@@ -188,48 +486,23 @@ public abstract class Recycler {
             return cursor;
         }
 
-        protected void deleteMessagesForThread(Context context, long threadId, int keep) {
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "SMS: deleteMessagesForThread");
-            }
-            ContentResolver resolver = context.getContentResolver();
-            Cursor cursor = null;
-            try {
-                cursor = SqliteWrapper.query(context, resolver,
-                        ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                        SMS_MESSAGE_PROJECTION,
-                        "locked=0",
-                        null, "date DESC");     // get in newest to oldest order
-                if (cursor == null) {
-                    Log.e(TAG, "SMS: deleteMessagesForThread got back null cursor");
-                    return;
-                }
-                int count = cursor.getCount();
-                int numberToDelete = count - keep;
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "SMS: deleteMessagesForThread keep: " + keep +
-                            " count: " + count +
-                            " numberToDelete: " + numberToDelete);
-                }
-                if (numberToDelete <= 0) {
-                    return;
-                }
-               // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                long latestDate = cursor.getLong(COLUMN_SMS_DATE);
-
-                long cntDeleted = SqliteWrapper.delete(context, resolver,
-                        ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                        "locked=0 AND date<" + latestDate,
-                        null);
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "SMS: deleteMessagesForThread cntDeleted: " + cntDeleted);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
+        protected int getMessageCount(Cursor cursor) {
+            return cursor.getInt(MESSAGE_COUNT);
+        }
+
+        protected Cursor queryUnlockedMessageIds(Context context, long threadId) {
+            return SqliteWrapper.query(context, context.getContentResolver(),
+                    ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
+                    ID_PROJECTION,
+                    "locked=0",
+                    null, "date DESC, _id DESC");     // get in newest to oldest order
+        }
+
+        protected int deleteMessages(Context context, long threadId, String ids) {
+            return SqliteWrapper.delete(context, context.getContentResolver(),
+                    ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
+                    "locked=0 AND _id IN (" + ids + ")",
+                    null);
         }
 
         protected void dumpMessage(Cursor cursor, Context context) {
@@ -244,33 +517,13 @@ public abstract class Recycler {
                         "\n    read: " + cursor.getInt(COLUMN_SMS_READ));
             }
         }
-
-        @Override
-        protected boolean anyThreadOverLimit(Context context) {
-            Cursor cursor = getAllThreads(context);
-            int limit = getMessageLimit(context);
-            try {
-                while (cursor.moveToNext()) {
-                    long threadId = getThreadId(cursor);
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor msgs = SqliteWrapper.query(context, resolver,
-                            ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                            SMS_MESSAGE_PROJECTION,
-                            "locked=0",
-                            null, "date DESC");     // get in newest to oldest order
-
-                    if (msgs.getCount() >= limit) {
-                        return true;
-                    }
-                }
-            } finally {
-                cursor.close();
-            }
-            return false;
-        }
     }
 
     public static class MmsRecycler extends Recycler {
+        private static final String[] ID_PROJECTION = { BaseColumns._ID };
+
+        private static final String[] THREAD_ID_PROJECTION = { Mms.THREAD_ID };
+
         private static final String[] ALL_MMS_THREADS_PROJECTION = {
             "thread_id", "count(*) as msg_count"
         };
@@ -319,6 +572,14 @@ public abstract class Recycler {
             return cursor;
         }
 
+        protected int getMessageCount(Cursor cursor) {
+            return cursor.getInt(MESSAGE_COUNT);
+        }
+
+        /**
+         * Delete the messages over the limit in the thread of a message that
+         * was just stored, in the background.
+         */
         public void deleteOldMessagesInSameThreadAsMessage(Context context, Uri uri) {
             if (LOCAL_DEBUG) {
                 Log.v(TAG, "MMS: deleteOldMessagesByUri");
@@ -326,99 +587,38 @@ public abstract class Recycler {
             if (!isAutoDeleteEnabled(context)) {
                 return;
             }
-            Cursor cursor = null;
-            long latestDate = 0;
             long threadId = 0;
+            Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    uri, THREAD_ID_PROJECTION, null, null, null);
+            if (cursor == null) {
+                Log.e(TAG, "MMS: deleteOldMessagesInSameThreadAsMessage got back null cursor");
+                return;
+            }
             try {
-                String msgId = uri.getLastPathSegment();
-                ContentResolver resolver = context.getContentResolver();
-                cursor = SqliteWrapper.query(context, resolver,
-                        Telephony.Mms.CONTENT_URI,
-                        MMS_MESSAGE_PROJECTION,
-                        "thread_id in (select thread_id from pdu where _id=" + msgId +
-                            ") AND locked=0",
-                        null, "date DESC");     // get in newest to oldest order
-                if (cursor == null) {
-                    Log.e(TAG, "MMS: deleteOldMessagesInSameThreadAsMessage got back null cursor");
-                    return;
-                }
-
-                int count = cursor.getCount();
-                int keep = getMessageLimit(context);
-                int numberToDelete = count - keep;
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "MMS: deleteOldMessagesByUri keep: " + keep +
-                            " count: " + count +
-                            " numberToDelete: " + numberToDelete);
-                }
-                if (numberToDelete <= 0) {
-                    return;
+                if (cursor.moveToFirst()) {
+                    threadId = cursor.getLong(0);
                 }
-                // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                latestDate = cursor.getLong(COLUMN_MMS_DATE);
-                threadId = cursor.getLong(COLUMN_THREAD_ID);
             } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                cursor.close();
             }
             if (threadId != 0) {
-                deleteMessagesOlderThanDate(context, threadId, latestDate);
+                deleteOldMessagesByThreadId(context, threadId);
             }
         }
 
-        protected void deleteMessagesForThread(Context context, long threadId, int keep) {
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "MMS: deleteMessagesForThread");
-            }
-            if (threadId == 0) {
-                return;
-            }
-            Cursor cursor = null;
-            long latestDate = 0;
-            try {
-                ContentResolver resolver = context.getContentResolver();
-                cursor = SqliteWrapper.query(context, resolver,
-                        Telephony.Mms.CONTENT_URI,
-                        MMS_MESSAGE_PROJECTION,
-                        "thread_id=" + threadId + " AND locked=0",
-                        null, "date DESC");     // get in newest to oldest order
-                if (cursor == null) {
-                    Log.e(TAG, "MMS: deleteMessagesForThread got back null cursor");
-                    return;
-                }
-
-                int count = cursor.getCount();
-                int numberToDelete = count - keep;
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "MMS: deleteMessagesForThread keep: " + keep +
-                            " count: " + count +
-                            " numberToDelete: " + numberToDelete);
-                }
-                if (numberToDelete <= 0) {
-                    return;
-                }
-                // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                latestDate = cursor.getLong(COLUMN_MMS_DATE);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            deleteMessagesOlderThanDate(context, threadId, latestDate);
+        protected Cursor queryUnlockedMessageIds(Context context, long threadId) {
+            return SqliteWrapper.query(context, context.getContentResolver(),
+                    Telephony.Mms.CONTENT_URI,
+                    ID_PROJECTION,
+                    "thread_id=" + threadId + " AND locked=0",
+                    null, "date DESC, _id DESC");     // get in newest to oldest order
         }
 
-        private void deleteMessagesOlderThanDate(Context context, long threadId,
-                long latestDate) {
-            long cntDeleted = SqliteWrapper.delete(context, context.getContentResolver(),
+        protected int deleteMessages(Context context, long threadId, String ids) {
+            return SqliteWrapper.delete(context, context.getContentResolver(),
                     Telephony.Mms.CONTENT_URI,
-                    "thread_id=" + threadId + " AND locked=0 AND date<" + latestDate,
+                    "thread_id=" + threadId + " AND locked=0 AND _id IN (" + ids + ")",
                     null);
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "MMS: deleteMessagesOlderThanDate cntDeleted: " + cntDeleted);
-            }
         }
 
         protected void dumpMessage(Cursor cursor, Context context) {
@@ -429,32 +629,6 @@ public abstract class Recycler {
                 );
             }
         }
-
-        @Override
-        protected boolean anyThreadOverLimit(Context context) {
-            Cursor cursor = getAllThreads(context);
-            int limit = getMessageLimit(context);
-            try {
-                while (cursor.moveToNext()) {
-                    long threadId = getThreadId(cursor);
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor msgs = SqliteWrapper.query(context, resolver,
-                            Telephony.Mms.CONTENT_URI,
-                            MMS_MESSAGE_PROJECTION,
-                            "thread_id=" + threadId + " AND locked=0",
-                            null, "date DESC");     // get in newest to oldest order
-
-                    if (msgs.getCount() >= limit) {
-                        return true;
-                    }
-                }
-            } finally {
-                cursor.close();
-            }
-            return false;
-        }
     }
 
 }
-
-
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.google.android.mms.MmsException;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Unit tests for AdaptiveRetryScheme and the failure classification it
+ * relies on.
+ */
+@SmallTest
+public class AdaptiveRetrySchemeTest extends AndroidTestCase {
+    private static final long BASE = 60 * 1000;
+    private static final long MAX = 30 * 60 * 1000;
+
+    public void testBackoffDoublesUpToMaximum() {
+        long[] expected = { BASE, 2 * BASE, 4 * BASE, 8 * BASE, 16 * BASE, MAX, MAX };
+        for (int i = 0; i < expected.length; i++) {
+            AdaptiveRetryScheme scheme = new AdaptiveRetryScheme(i + 1,
+                    TransactionFailure.NETWORK, BASE, MAX, 5, 0, new Random(0));
+            assertEquals("retry " + (i + 1), expected[i], scheme.getWaitingInterval());
+        }
+    }
+
+    public void testJitterStaysWithinBounds() {
+        Random random = new Random(42);
+        boolean varied = false;
+        for (int i = 0; i < 100; i++) {
+            long delay = new AdaptiveRetryScheme(2, TransactionFailure.TIMEOUT,
+                    BASE, MAX, 5, 20, random).getWaitingInterval();
+            assertTrue("delay " + delay, (delay >= 2 * BASE * 8 / 10)
+                    && (delay <= 2 * BASE * 12 / 10));
+            varied |= (delay != 2 * BASE);
+        }
+        assertTrue(varied);
+    }
+
+    public void testPermanentFailuresAreNotRetried() {
+        assertEquals(0, new AdaptiveRetryScheme(1, TransactionFailure.HTTP_CLIENT,
+                BASE, MAX, 5, 0, new Random()).getRetryLimit());
+        assertEquals(0, new AdaptiveRetryScheme(1, TransactionFailure.PARSE,
+                BASE, MAX, 5, 0, new Random()).getRetryLimit());
+        assertEquals(5, new AdaptiveRetryScheme(1, TransactionFailure.HTTP_SERVER,
+                BASE, MAX, 5, 0, new Random()).getRetryLimit());
+    }
+
+    public void testClassify() {
+        IOException dns = new IOException("Cannot establish route for http://mmsc: Unknown host");
+        dns.initCause(new UnknownHostException("mmsc"));
+        assertEquals(TransactionFailure.DNS, TransactionFailure.classify(dns));
+
+        assertEquals(TransactionFailure.ROUTE, TransactionFailure.classify(
+                new IOException("Cannot establish route to proxy 10.0.0.1")));
+
+        IOException timeout = new IOException("Read timed out");
+        timeout.initCause(new SocketTimeoutException());
+        assertEquals(TransactionFailure.TIMEOUT, TransactionFailure.classify(timeout));
+
+        assertEquals(TransactionFailure.HTTP_CLIENT, TransactionFailure.classify(
+                new HttpUtils.HttpStatusException(404, "Not Found")));
+        assertEquals(TransactionFailure.HTTP_SERVER, TransactionFailure.classify(
+                new HttpUtils.HttpStatusException(503, "Service Unavailable")));
+
+        assertEquals(TransactionFailure.PARSE, TransactionFailure.classify(
+                new MmsException("Invalid M-Retrieve.conf PDU.")));
+        assertEquals(TransactionFailure.NETWORK, TransactionFailure.classify(
+                new IOException("Connection reset")));
+        assertEquals(TransactionFailure.UNKNOWN, TransactionFailure.classify(null));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for the order and the limits DownloadScheduler starts
+ * downloads with.
+ */
+@SmallTest
+public class DownloadSchedulerTest extends AndroidTestCase {
+    private static final long KB = 1024;
+
+    private final ArrayList<Runnable> mStarted = new ArrayList<Runnable>();
+
+    private final Executor mExecutor = new Executor() {
+        public void execute(Runnable runnable) {
+            mStarted.add(runnable);
+        }
+    };
+
+    private static Runnable job() {
+        return new Runnable() {
+            public void run() {
+            }
+        };
+    }
+
+    public void testSmallestFirstWithinByteLimit() {
+        DownloadScheduler scheduler = new DownloadScheduler(mExecutor, 100 * KB, 0, 0, 0);
+        long now = SystemClock.elapsedRealtime();
+        Runnable first = job();
+        Runnable large = job();
+        Runnable small = job();
+        Runnable medium = job();
+
+        scheduler.submit(first, 60 * KB, now);
+        scheduler.submit(large, 500 * KB, now);
+        scheduler.submit(small, 10 * KB, now);
+        scheduler.submit(medium, 30 * KB, now);
+
+        // 60 + 10 + 30 fit under the limit, the large one has to wait.
+        assertEquals(3, mStarted.size());
+        assertSame(first, mStarted.get(0));
+        assertSame(small, mStarted.get(1));
+        assertSame(medium, mStarted.get(2));
+
+        scheduler.onFinished(first);
+        scheduler.onFinished(small);
+        assertEquals(3, mStarted.size());
+
+        // Runs alone although it is over the limit.
+        scheduler.onFinished(medium);
+        assertEquals(4, mStarted.size());
+        assertSame(large, mStarted.get(3));
+    }
+
+    public void testWaitingDownloadsAge() {
+        DownloadScheduler scheduler = new DownloadScheduler(mExecutor, 1, 10 * KB, 0, 0);
+        long now = SystemClock.elapsedRealtime();
+        Runnable running = job();
+        Runnable old = job();
+        Runnable fresh = job();
+
+        scheduler.submit(running, 1 * KB, now);
+        // 200KB, but waiting for a minute counts as 600KB off.
+        scheduler.submit(old, 200 * KB, now - 60 * 1000);
+        scheduler.submit(fresh, 5 * KB, now);
+        assertEquals(1, mStarted.size());
+
+        scheduler.onFinished(running);
+        assertEquals(2, mStarted.size());
+        assertSame(old, mStarted.get(1));
+    }
+
+    public void testStartAll() {
+        DownloadScheduler scheduler = new DownloadScheduler(mExecutor, 1, 0, 0, 0);
+        long now = SystemClock.elapsedRealtime();
+        scheduler.submit(job(), 10 * KB, now);
+        scheduler.submit(job(), 20 * KB, now);
+        scheduler.submit(job(), 30 * KB, now);
+        assertEquals(1, mStarted.size());
+
+        scheduler.startAll();
+        assertEquals(3, mStarted.size());
+    }
+}
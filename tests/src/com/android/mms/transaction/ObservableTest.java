@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for attaching and detaching observers while they are notified.
+ */
+@SmallTest
+public class ObservableTest extends AndroidTestCase {
+    private final ArrayList<Observer> mNotified = new ArrayList<Observer>();
+
+    private final Observable mObservable = new Observable() {
+        @Override
+        public TransactionState getState() {
+            return new TransactionState();
+        }
+    };
+
+    private class DetachingObserver implements Observer {
+        Observer mVictim;
+
+        public void update(Observable observable) {
+            mNotified.add(this);
+            observable.detach((mVictim != null) ? mVictim : this);
+        }
+    }
+
+    public void testObserverDetachesItself() {
+        DetachingObserver first = new DetachingObserver();
+        DetachingObserver second = new DetachingObserver();
+        mObservable.attach(first);
+        mObservable.attach(second);
+
+        mObservable.notifyObservers();
+        assertEquals(2, mNotified.size());
+
+        mObservable.notifyObservers();
+        assertEquals(2, mNotified.size());
+    }
+
+    public void testObserverDetachesAnother() {
+        DetachingObserver first = new DetachingObserver();
+        DetachingObserver second = new DetachingObserver();
+        first.mVictim = second;
+        second.mVictim = second;
+        mObservable.attach(first);
+        mObservable.attach(second);
+
+        // Notified anyway, it was attached when the notification started.
+        mObservable.notifyObservers();
+        assertEquals(2, mNotified.size());
+
+        // The first one is still attached.
+        mObservable.notifyObservers();
+        assertEquals(3, mNotified.size());
+        assertSame(first, mNotified.get(2));
+    }
+
+    public void testQueuedNotificationKeepsItsObservers() {
+        final ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        mObservable.setDispatchExecutor(new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        DetachingObserver first = new DetachingObserver();
+        DetachingObserver second = new DetachingObserver();
+        mObservable.attach(first);
+        mObservable.notifyObservers();
+
+        // Attached after the notification was queued, so not notified by it.
+        mObservable.attach(second);
+        queued.get(0).run();
+        assertEquals(1, mNotified.size());
+        assertSame(first, mNotified.get(0));
+    }
+}
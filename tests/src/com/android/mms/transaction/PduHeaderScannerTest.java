@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Unit tests for picking the IDs out of M-Retrieve.conf headers as they
+ * are received.
+ */
+@SmallTest
+public class PduHeaderScannerTest extends AndroidTestCase {
+    // M-Retrieve.conf headers followed by the start of a multipart body.
+    private static final byte[] RETRIEVE_CONF = concat(
+            new byte[] { (byte) 0x8C, (byte) 0x84 },                    // Message-Type
+            new byte[] { (byte) 0x98 }, text("T1234"),                  // Transaction-ID
+            new byte[] { (byte) 0x8D, (byte) 0x92 },                    // MMS-Version 1.2
+            new byte[] { (byte) 0x85, 0x04, 0x4C, 0x1A, 0x2B, 0x3C },   // Date
+            new byte[] { (byte) 0x89, 0x05, (byte) 0x80 }, text("555"), // From
+            new byte[] { (byte) 0x96 }, text("Hello"),                  // Subject
+            new byte[] { 'X', '-', 'A', 0 }, text("b"),                 // Application header
+            new byte[] { (byte) 0x8B }, text("msg-1@mmsc"),             // Message-ID
+            new byte[] { (byte) 0x84, (byte) 0xA3, 0x01, 0x02, 0x03 }); // Content-Type, body
+
+    private String mMessageId;
+    private byte[] mTransactionId;
+    private int mCalls;
+
+    private final PduHeaderScanner.Listener mListener = new PduHeaderScanner.Listener() {
+        public void onHeaders(String messageId, byte[] transactionId) {
+            mMessageId = messageId;
+            mTransactionId = transactionId;
+            mCalls++;
+        }
+    };
+
+    private static byte[] text(String value) {
+        byte[] bytes = new byte[value.length() + 1];
+        System.arraycopy(value.getBytes(), 0, bytes, 0, value.length());
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    public void testFindsIdsAndPassesDataThrough() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PduHeaderScanner scanner = new PduHeaderScanner(out, mListener);
+        // A few bytes at a time, as they come off the network.
+        for (int i = 0; i < RETRIEVE_CONF.length; i += 3) {
+            scanner.write(RETRIEVE_CONF, i, Math.min(3, RETRIEVE_CONF.length - i));
+        }
+
+        assertEquals(1, mCalls);
+        assertEquals("msg-1@mmsc", mMessageId);
+        assertTrue(Arrays.equals("T1234".getBytes(), mTransactionId));
+        assertTrue(Arrays.equals(RETRIEVE_CONF, out.toByteArray()));
+    }
+
+    public void testStopsAtContentType() throws IOException {
+        byte[] pdu = concat(
+                new byte[] { (byte) 0x8C, (byte) 0x84 },
+                new byte[] { (byte) 0x98 }, text("T1"),
+                new byte[] { (byte) 0x84, (byte) 0xA3, (byte) 0x8B, 'x', 0 });
+        PduHeaderScanner scanner = new PduHeaderScanner(new ByteArrayOutputStream(), mListener);
+        scanner.write(pdu, 0, pdu.length);
+
+        assertTrue(scanner.isDone());
+        assertEquals(1, mCalls);
+        // The Message-ID look-alike in the body is not a header.
+        assertNull(mMessageId);
+        assertTrue(Arrays.equals("T1".getBytes(), mTransactionId));
+    }
+
+    public void testListenerCanAbort() {
+        PduHeaderScanner scanner = new PduHeaderScanner(new ByteArrayOutputStream(),
+                new PduHeaderScanner.Listener() {
+                    public void onHeaders(String messageId, byte[] transactionId)
+                            throws IOException {
+                        throw new HttpUtils.TransferAbortedException(messageId);
+                    }
+                });
+        try {
+            scanner.write(RETRIEVE_CONF, 0, RETRIEVE_CONF.length);
+            fail("Transfer not aborted");
+        } catch (IOException e) {
+            assertTrue(e instanceof HttpUtils.TransferAbortedException);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the order RetrievalPipeline runs the stages of a job in.
+ */
+@SmallTest
+public class RetrievalPipelineTest extends AndroidTestCase {
+    private RetrievalPipeline mPipeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPipeline = new RetrievalPipeline(1);
+    }
+
+    private static class TestJob implements RetrievalPipeline.Job {
+        final ArrayList<Integer> mStages = new ArrayList<Integer>();
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        final int mSkipTo;
+        final int mFailIn;
+        Throwable mFailure;
+
+        TestJob(int skipTo, int failIn) {
+            mSkipTo = skipTo;
+            mFailIn = failIn;
+        }
+
+        public int runStage(int stage) throws Throwable {
+            mStages.add(stage);
+            if (stage == mFailIn) {
+                throw new IllegalStateException("stage " + stage);
+            }
+            if (stage == RetrievalPipeline.STAGE_PARSE) {
+                return mSkipTo;
+            }
+            return stage + 1;
+        }
+
+        public void onFinished(Throwable failure) {
+            mFailure = failure;
+            mFinished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testRunsAllStagesInOrder() throws InterruptedException {
+        ArrayList<TestJob> jobs = new ArrayList<TestJob>();
+        for (int i = 0; i < 5; i++) {
+            TestJob job = new TestJob(RetrievalPipeline.STAGE_PERSIST, -1);
+            jobs.add(job);
+            mPipeline.submit(job, RetrievalPipeline.STAGE_PARSE);
+        }
+        for (TestJob job : jobs) {
+            job.await();
+            assertNull(job.mFailure);
+            assertEquals(3, job.mStages.size());
+            assertEquals(RetrievalPipeline.STAGE_PARSE, (int) job.mStages.get(0));
+            assertEquals(RetrievalPipeline.STAGE_PERSIST, (int) job.mStages.get(1));
+            assertEquals(RetrievalPipeline.STAGE_POST, (int) job.mStages.get(2));
+        }
+    }
+
+    public void testSkipsStages() throws InterruptedException {
+        TestJob job = new TestJob(RetrievalPipeline.STAGE_POST, -1);
+        mPipeline.submit(job, RetrievalPipeline.STAGE_PARSE);
+        job.await();
+        assertEquals(2, job.mStages.size());
+        assertEquals(RetrievalPipeline.STAGE_POST, (int) job.mStages.get(1));
+    }
+
+    public void testFailureEndsJob() throws InterruptedException {
+        TestJob job = new TestJob(RetrievalPipeline.STAGE_PERSIST, RetrievalPipeline.STAGE_PERSIST);
+        mPipeline.submit(job, RetrievalPipeline.STAGE_PARSE);
+        job.await();
+        assertTrue(job.mFailure instanceof IllegalStateException);
+        assertEquals(2, job.mStages.size());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Unit tests for the send window of the SmsSendQueue.
+ */
+@SmallTest
+public class SmsSendQueueTest extends AndroidTestCase {
+    private SmsSendQueue mQueue;
+
+    // The messages deleted from the queued box behind the queue's back.
+    private final HashSet<Uri> mDeleted = new HashSet<Uri>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new SmsSendQueue(getContext()) {
+            @Override
+            HashSet<Uri> getStillQueued(List<Entry> entries) {
+                HashSet<Uri> queued = new HashSet<Uri>();
+                for (Entry entry : entries) {
+                    if (!mDeleted.contains(entry.getUri())) {
+                        queued.add(entry.getUri());
+                    }
+                }
+                return queued;
+            }
+        };
+    }
+
+    private Uri add(int id, long threadId, String address, long date) {
+        Uri uri = Uri.parse("content://sms/" + id);
+        mQueue.add(new SmsSendQueue.Entry(uri, threadId, address, "body", false, date));
+        return uri;
+    }
+
+    public void testOneAtATimePerRecipient() {
+        Uri first = add(1, 1, "5551234", 100);
+        Uri second = add(2, 1, "5551234", 200);
+        Uri other = add(3, 2, "5555678", 150);
+
+        List<SmsSendQueue.Entry> sendable = mQueue.takeSendable(4);
+        assertEquals(2, sendable.size());
+        assertEquals(first, sendable.get(0).getUri());
+        assertEquals(other, sendable.get(1).getUri());
+
+        mQueue.onFinished(first);
+        sendable = mQueue.takeSendable(4);
+        assertEquals(1, sendable.size());
+        assertEquals(second, sendable.get(0).getUri());
+    }
+
+    public void testWindow() {
+        for (int i = 0; i < 5; i++) {
+            add(i, i, "555000" + i, i);
+        }
+        assertEquals(3, mQueue.takeSendable(3).size());
+        assertTrue(mQueue.takeSendable(3).isEmpty());
+
+        mQueue.onFinished(Uri.parse("content://sms/0"));
+        assertEquals(1, mQueue.takeSendable(3).size());
+    }
+
+    public void testRequeueKeepsOrder() {
+        Uri first = add(1, 1, "5551234", 100);
+        add(2, 1, "5551234", 200);
+        assertEquals(first, mQueue.takeSendable(1).get(0).getUri());
+
+        // No service; the message goes out again before the later one.
+        mQueue.requeue(first);
+        assertEquals(first, mQueue.takeSendable(1).get(0).getUri());
+    }
+
+    public void testIgnoresDuplicates() {
+        add(1, 1, "5551234", 100);
+        add(1, 1, "5551234", 100);
+        assertEquals(1, mQueue.takeSendable(4).size());
+        assertTrue(mQueue.takeSendable(4).isEmpty());
+    }
+
+    public void testDropsDeletedMessages() {
+        Uri first = add(1, 1, "5551234", 100);
+        Uri second = add(2, 1, "5551234", 200);
+        mDeleted.add(first);
+
+        List<SmsSendQueue.Entry> sendable = mQueue.takeSendable(4);
+        assertEquals(1, sendable.size());
+        assertEquals(second, sendable.get(0).getUri());
+    }
+
+    public void testFinishedAfterRequeue() {
+        Uri first = add(1, 1, "5551234", 100);
+        assertEquals(first, mQueue.takeSendable(1).get(0).getUri());
+
+        // An early part found no service, then the last part went out.
+        mQueue.requeue(first);
+        mQueue.onFinished(first);
+        assertTrue(mQueue.takeSendable(1).isEmpty());
+    }
+}
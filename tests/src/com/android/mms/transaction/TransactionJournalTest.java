@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Unit tests for replaying the TransactionJournal after a restart.
+ */
+@SmallTest
+public class TransactionJournalTest extends AndroidTestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "journal_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReplaysUnfinishedTransactions() {
+        TransactionJournal journal = new TransactionJournal(mFile);
+        journal.started("1:a", Transaction.RETRIEVE_TRANSACTION, "content://mms/1");
+        journal.started("2:b", Transaction.SEND_TRANSACTION, "content://mms/2");
+        journal.finished("1:a");
+        assertTrue(journal.takeInterrupted().isEmpty());
+
+        // A new process.
+        journal = new TransactionJournal(mFile);
+        List<TransactionJournal.Entry> entries = journal.takeInterrupted();
+        assertEquals(1, entries.size());
+        assertEquals(Transaction.SEND_TRANSACTION, entries.get(0).getType());
+        assertEquals("content://mms/2", entries.get(0).getUri());
+
+        // Taken entries are forgotten.
+        assertTrue(new TransactionJournal(mFile).takeInterrupted().isEmpty());
+    }
+
+    public void testCompactionKeepsUnfinished() {
+        TransactionJournal journal = new TransactionJournal(mFile);
+        journal.started("0:open", Transaction.NOTIFICATION_TRANSACTION, "content://mms/7");
+        for (int i = 0; i < 200; i++) {
+            journal.started("1:" + i, Transaction.RETRIEVE_TRANSACTION, "content://mms/" + i);
+            journal.finished("1:" + i);
+        }
+        long compacted = mFile.length();
+
+        List<TransactionJournal.Entry> entries = new TransactionJournal(mFile).takeInterrupted();
+        assertEquals(1, entries.size());
+        assertEquals("content://mms/7", entries.get(0).getUri());
+        assertTrue("Not compacted: " + compacted, compacted < 64 * 40);
+    }
+
+    public void testIgnoresTruncatedRecord() throws IOException {
+        TransactionJournal journal = new TransactionJournal(mFile);
+        journal.started("2:x", Transaction.SEND_TRANSACTION, "content://mms/3");
+
+        // A record cut short by the process dying.
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(new byte[] { 1, 0, 10, '1', ':' });
+        out.close();
+
+        List<TransactionJournal.Entry> entries = new TransactionJournal(mFile).takeInterrupted();
+        assertEquals(1, entries.size());
+        assertEquals("content://mms/3", entries.get(0).getUri());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for the BloomFilter used to skip duplicate message queries.
+ */
+@SmallTest
+public class BloomFilterTest extends AndroidTestCase {
+
+    public void testAddedValuesAreFound() {
+        BloomFilter filter = new BloomFilter(1 << 16, 4);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("http://mmsc.example.com/mms?id=" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("http://mmsc.example.com/mms?id=" + i));
+        }
+        assertEquals(1000, filter.size());
+    }
+
+    public void testFalsePositiveRateIsLow() {
+        BloomFilter filter = new BloomFilter(1 << 16, 4);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("message-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++) {
+            if (filter.mightContain("message-" + i)) {
+                falsePositives++;
+            }
+        }
+        // About 0.01% expected for this fill; allow plenty of slack.
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 100);
+    }
+
+    public void testClear() {
+        BloomFilter filter = new BloomFilter(1024, 3);
+        filter.add("a");
+        filter.clear();
+        assertFalse(filter.mightContain("a"));
+        assertEquals(0, filter.size());
+    }
+}